@@ -182,6 +182,52 @@ public class BlockFactory
 		return blocks[ id ].opaque;
 	}
 
+	/**
+	 * @param id
+	 * @return <code>true</code> if the block stops sky light shining straight
+	 *         down through it. This is what defines the height map
+	 */
+	public static boolean blocksSkyLight( byte id )
+	{
+		if( id >= blocks.length || blocks[ id ] == null )
+			return false;
+
+		final Block b = blocks[ id ];
+		return b.opaque || b == Block.Leaves || b == Block.Water
+				|| b == Block.StillWater || b == Block.Ice || b == Block.Slab;
+	}
+
+	/**
+	 * @param id
+	 * @return The level of light that the block gives off, in range 0-15
+	 */
+	public static int lightEmission( byte id )
+	{
+		switch( id )
+		{
+			case 10: // lava
+			case 11:
+			case 51: // fire
+			case 89: // glowstone
+			case 91: // jack-o-lantern
+				return 15;
+			case 50: // torch
+				return 14;
+			case 62: // lit furnace
+				return 13;
+			case 90: // portal
+				return 11;
+			case 74: // glowing redstone ore
+				return 9;
+			case 76: // redstone torch
+				return 7;
+			case 39: // brown mushroom
+				return 1;
+			default:
+				return 0;
+		}
+	}
+
 	/**
 	 * Holds vertex positions for each face of a unit cube
 	 * 
@@ -221,6 +267,18 @@ public class BlockFactory
 			for( int i = 0; i < verts.length; i++ )
 				System.arraycopy( verts[ i ], 0, this.verts, i * 3, 3 );
 		}
+
+		/**
+		 * @param vertex
+		 *           in range 0-3
+		 * @param axis
+		 *           0 for x, 1 for y, 2 for z
+		 * @return the coordinate of that vertex in the unit cube, 0 or 1
+		 */
+		public float vertex( int vertex, int axis )
+		{
+			return verts[ vertex * 3 + axis ];
+		}
 	}
 
 	/**
@@ -427,9 +485,87 @@ public class BlockFactory
 		 */
 		public void face( Face f, float bx, float by, float bz, int colour,
 				ShapeBuilder sb )
+		{
+			face( f, bx, by, bz, colour, colour, colour, colour, false, sb );
+		}
+
+		/**
+		 * Adds a face to the {@link ShapeBuilder}, with a colour for each
+		 * vertex
+		 * 
+		 * @param f
+		 *           which side
+		 * @param bx
+		 *           block coordinate
+		 * @param by
+		 *           block coordinate
+		 * @param bz
+		 *           block coordinate
+		 * @param c0
+		 *           Vertex colour, for the vertices in the order defined in
+		 *           {@link Face}
+		 * @param c1
+		 * @param c2
+		 * @param c3
+		 * @param flip
+		 *           <code>true</code> to split the quad along the 0-3 diagonal
+		 *           rather than the 1-2
+		 * @param sb
+		 */
+		public void face( Face f, float bx, float by, float bz, int c0, int c1,
+				int c2, int c3, boolean flip, ShapeBuilder sb )
 		{
 			sb.ensureCapacity( 4, 2 );
 
+			quadVertices( f, bx, by, bz, c0, c1, c2, c3, flip, sb );
+
+			sb.relTriangle( 0, 2, 1 );
+			sb.relTriangle( 2, 3, 1 );
+
+			sb.vertexCount += 4;
+		}
+
+		/**
+		 * Adds a face's four vertices to the {@link ShapeBuilder}, but no
+		 * triangles. Every quad added like this is split the same way, along
+		 * the diagonal between its second and third vertices, so meshes of
+		 * them can share one index buffer
+		 * 
+		 * @param f
+		 *           which side
+		 * @param bx
+		 *           block coordinate
+		 * @param by
+		 *           block coordinate
+		 * @param bz
+		 *           block coordinate
+		 * @param c0
+		 *           Vertex colour, for the vertices in the order defined in
+		 *           {@link Face}
+		 * @param c1
+		 * @param c2
+		 * @param c3
+		 * @param flip
+		 *           <code>true</code> to split the quad along the 0-3 diagonal
+		 *           rather than the 1-2
+		 * @param sb
+		 */
+		public void quad( Face f, float bx, float by, float bz, int c0, int c1,
+				int c2, int c3, boolean flip, ShapeBuilder sb )
+		{
+			sb.ensureCapacity( 4, 0 );
+
+			quadVertices( f, bx, by, bz, c0, c1, c2, c3, flip, sb );
+
+			sb.vertexCount += 4;
+		}
+
+		private void quadVertices( Face f, float bx, float by, float bz, int c0,
+				int c1, int c2, int c3, boolean flip, ShapeBuilder sb )
+		{
+			final int vertexStart = sb.vertexOffset;
+			final int texCoordStart = sb.texCoordOffset;
+
 			// add vertices
 			System.arraycopy( f.verts, 0, sb.vertices, sb.vertexOffset,
 					f.verts.length );
@@ -440,9 +576,22 @@ public class BlockFactory
 				sb.vertices[ sb.vertexOffset++ ] += bx;
 				sb.vertices[ sb.vertexOffset++ ] += by;
 				sb.vertices[ sb.vertexOffset++ ] += bz;
+			}
 
-				// colour
-				sb.colours[ sb.colourOffset++ ] = colour;
+			// colour
+			if( flip )
+			{ // the vertices are rotated, see below
+				sb.colours[ sb.colourOffset++ ] = c2;
+				sb.colours[ sb.colourOffset++ ] = c0;
+				sb.colours[ sb.colourOffset++ ] = c3;
+				sb.colours[ sb.colourOffset++ ] = c1;
+			}
+			else
+			{
+				sb.colours[ sb.colourOffset++ ] = c0;
+				sb.colours[ sb.colourOffset++ ] = c1;
+				sb.colours[ sb.colourOffset++ ] = c2;
+				sb.colours[ sb.colourOffset++ ] = c3;
 			}
 
 			// texcoords
@@ -479,10 +628,34 @@ public class BlockFactory
 			sb.texCoords[ sb.texCoordOffset++ ] = tu;
 			sb.texCoords[ sb.texCoordOffset++ ] = tv;
 
-			sb.relTriangle( 0, 2, 1 );
-			sb.relTriangle( 2, 3, 1 );
+			if( flip )
+			{
+				// rotate the vertex order so that the 0-3 diagonal becomes
+				// the 1-2 diagonal, keeping the winding
+				rotate( sb.vertices, vertexStart, 3 );
+				rotate( sb.texCoords, texCoordStart, 2 );
+			}
+		}
 
-			sb.vertexCount += 4;
+		/**
+		 * Reorders a quad's vertex attributes from 0, 1, 2, 3 to 2, 0, 3, 1
+		 * 
+		 * @param a
+		 * @param start
+		 *           index of the first vertex's attribute
+		 * @param size
+		 *           number of components per vertex
+		 */
+		private static void rotate( float[] a, int start, int size )
+		{
+			for( int c = start; c < start + size; c++ )
+			{
+				final float t = a[ c ];
+				a[ c ] = a[ c + 2 * size ];
+				a[ c + 2 * size ] = a[ c + 3 * size ];
+				a[ c + 3 * size ] = a[ c + size ];
+				a[ c + size ] = t;
+			}
 		}
 	}
 }
@@ -10,6 +10,7 @@ import com.ryanm.droid.rugl.Game;
 import com.ryanm.droid.rugl.Phase;
 import com.ryanm.droid.rugl.util.Colour;
 import com.ryanm.droid.rugl.util.FPSCamera;
+import com.ryanm.droid.rugl.util.geom.Vector3f;
 import com.ryanm.minedroid.ItemFactory.Item;
 import com.ryanm.minedroid.ui.GUI;
 import com.ryanm.preflect.annote.Summary;
@@ -46,6 +47,11 @@ public class BlockView extends Phase
 
 	private Game game;
 
+	/**
+	 * Interpolated player position
+	 */
+	private final Vector3f eye = new Vector3f();
+
 	private boolean defaultConfigLoaded = false;
 
 	/**
@@ -61,7 +67,9 @@ public class BlockView extends Phase
 	public void init( Game game )
 	{
 		Game.setConfigurationRoots( game, this );
-		Game.logicAdvance = 1.0f / 60;
+		// the player does its own fixed-step physics, and needs real time to
+		// do it
+		Game.logicAdvance = -1;
 
 		this.game = game;
 
@@ -99,21 +107,34 @@ public class BlockView extends Phase
 		// steering
 		gui.advance( delta, cam );
 
-		// movement
-		player.advance( delta, cam, gui );
+		// movement. The player is held still until there's ground to stand
+		// on
+		if( !world.isPrewarming() )
+			player.update( delta, cam, gui );
 
 		// chunk loading
 		world.advance( player.position.x, player.position.z );
+
+		// day and night
+		world.advanceTime( delta );
 	}
 
 	@Override
 	public void draw()
 	{
+		// the sky darkens with the sky light
+		final float sb = world.getSkyBrightness();
+		GLES10.glClearColor( Colour.redf( skyColour ) * sb,
+				Colour.greenf( skyColour ) * sb, Colour.bluef( skyColour ) * sb,
+				Colour.alphaf( skyColour ) );
 		glClear( GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT );
 
-		cam.setPosition( player.position.x, player.position.y, player.position.z );
+		// see out to the far terrain
+		cam.far = Math.max( 80, world.farTerrainDistance );
+		player.getEyePosition( eye );
+		cam.setPosition( eye.x, eye.y, eye.z );
 
-		world.draw( player.position, cam.getFrustum() );
+		world.draw( eye, cam.getFrustum() );
 
 		gui.draw();
 
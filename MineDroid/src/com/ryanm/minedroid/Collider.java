@@ -0,0 +1,319 @@
+package com.ryanm.minedroid;
+
+import java.util.Arrays;
+
+import com.ryanm.droid.rugl.util.geom.Vector3f;
+import com.ryanm.minedroid.BlockFactory.Block;
+
+/**
+ * Moves boxes through the world without letting them pass into solid
+ * blocks. Movement is swept one axis at a time against the blocks in the
+ * path, vertical first, so however fast the box is going it stops flush
+ * against whatever it hits. The blocks in the path are copied into a small
+ * scratch array first, with one chunk lookup per chunk, and long movements
+ * are split into steps of at most {@link #MAX_STEP} so that array stays
+ * small. Nothing is allocated after the first few calls
+ * 
+ * @author ryanm
+ */
+public class Collider
+{
+	/**
+	 * Set in the result of {@link #move} if movement along the x axis was
+	 * blocked
+	 */
+	public static final int HIT_X = 1;
+
+	/**
+	 * Set if downward movement was blocked, i.e.: we're on the ground
+	 */
+	public static final int HIT_DOWN = 2;
+
+	/**
+	 * Set if upward movement was blocked
+	 */
+	public static final int HIT_UP = 4;
+
+	/**
+	 * Set if movement along the z axis was blocked
+	 */
+	public static final int HIT_Z = 8;
+
+	/**
+	 * The furthest we move along any axis in one sweep
+	 */
+	private static final float MAX_STEP = 1;
+
+	/**
+	 * Overlaps smaller than this are ignored, so boxes resting against a face
+	 * can slide along it
+	 */
+	private static final float EPSILON = 0.001f;
+
+	private final World world;
+
+	/**
+	 * The box being moved: min x, y, z then max x, y, z
+	 */
+	private final float[] box = new float[6];
+
+	/**
+	 * For each block in the path, how far up the block it is solid: 0 for
+	 * passable, 1 for a full block
+	 */
+	private float[] cells = new float[64];
+
+	/**
+	 * The block coordinates of the first cell, and the number along each axis
+	 */
+	private int cx, cy, cz, sx, sy, sz;
+
+	private final World.BlockVisitor gatherer = new World.BlockVisitor(){
+		@Override
+		public boolean visit( int x, int y, int z, byte blockType )
+		{
+			cells[ ( ( x - cx ) * sz + z - cz ) * sy + y - cy ] =
+					solidity( blockType );
+			return true;
+		}
+	};
+
+	/**
+	 * @param world
+	 */
+	public Collider( World world )
+	{
+		this.world = world;
+	}
+
+	/**
+	 * Moves a box as far as it can go
+	 * 
+	 * @param x0
+	 *           box minimum
+	 * @param y0
+	 *           box minimum
+	 * @param z0
+	 *           box minimum
+	 * @param x1
+	 *           box maximum
+	 * @param y1
+	 *           box maximum
+	 * @param z1
+	 *           box maximum
+	 * @param motion
+	 *           The desired movement. This is overwritten with the movement
+	 *           actually made
+	 * @param stepHeight
+	 *           How high a ledge we can step up onto when we're on the ground
+	 * @return A combination of {@link #HIT_X}, {@link #HIT_DOWN},
+	 *         {@link #HIT_UP} and {@link #HIT_Z} flags
+	 */
+	public int move( float x0, float y0, float z0, float x1, float y1,
+			float z1, Vector3f motion, float stepHeight )
+	{
+		box[ 0 ] = x0;
+		box[ 1 ] = y0;
+		box[ 2 ] = z0;
+		box[ 3 ] = x1;
+		box[ 4 ] = y1;
+		box[ 5 ] = z1;
+
+		final float longest =
+				Math.max( Math.abs( motion.x ),
+						Math.max( Math.abs( motion.y ), Math.abs( motion.z ) ) );
+		final int steps = Math.max( 1, ( int ) Math.ceil( longest / MAX_STEP ) );
+
+		float dx = motion.x / steps;
+		float dy = motion.y / steps;
+		float dz = motion.z / steps;
+		int hits = 0;
+
+		for( int i = 0; i < steps; i++ )
+		{
+			hits |= step( dx, dy, dz, stepHeight, hits );
+
+			// no point pushing against what we've hit
+			if( ( hits & HIT_X ) != 0 )
+				dx = 0;
+			if( ( hits & ( HIT_DOWN | HIT_UP ) ) != 0 )
+				dy = 0;
+			if( ( hits & HIT_Z ) != 0 )
+				dz = 0;
+		}
+
+		motion.set( box[ 0 ] - x0, box[ 1 ] - y0, box[ 2 ] - z0 );
+
+		return hits;
+	}
+
+	private int step( float dx, float dy, float dz, float stepHeight,
+			int earlierHits )
+	{
+		gather( dx, dy, dz, stepHeight );
+
+		int hits = 0;
+
+		// vertical first, so we land before sliding
+		final float my = sweep( 1, dy );
+		if( my != dy )
+			hits |= dy < 0 ? HIT_DOWN : HIT_UP;
+		translate( 1, my );
+
+		final float bx = box[ 0 ], by = box[ 1 ], bz = box[ 2 ];
+
+		float mx = sweep( 0, dx );
+		translate( 0, mx );
+		float mz = sweep( 2, dz );
+		translate( 2, mz );
+
+		if( ( mx != dx || mz != dz ) && stepHeight > 0
+				&& ( ( hits | earlierHits ) & HIT_DOWN ) != 0 )
+		{
+			// blocked while on the ground, see if we can get further by
+			// stepping up
+			final float ax = box[ 0 ], ay = box[ 1 ], az = box[ 2 ];
+			translate( 0, bx - ax );
+			translate( 1, by - ay );
+			translate( 2, bz - az );
+
+			final float up = sweep( 1, stepHeight );
+			translate( 1, up );
+			final float sx = sweep( 0, dx );
+			translate( 0, sx );
+			final float sz = sweep( 2, dz );
+			translate( 2, sz );
+			translate( 1, sweep( 1, -up ) );
+
+			if( sx * sx + sz * sz > mx * mx + mz * mz )
+			{
+				mx = sx;
+				mz = sz;
+			}
+			else
+			{
+				translate( 0, ax - box[ 0 ] );
+				translate( 1, ay - box[ 1 ] );
+				translate( 2, az - box[ 2 ] );
+			}
+		}
+
+		if( mx != dx )
+			hits |= HIT_X;
+		if( mz != dz )
+			hits |= HIT_Z;
+
+		return hits;
+	}
+
+	/**
+	 * Clips a movement along one axis against the gathered blocks
+	 * 
+	 * @param axis
+	 *           0, 1 or 2 for x, y or z
+	 * @param d
+	 *           desired movement
+	 * @return allowed movement
+	 */
+	private float sweep( int axis, float d )
+	{
+		if( d == 0 )
+			return 0;
+
+		final int a1 = axis == 0 ? 1 : 0;
+		final int a2 = axis == 2 ? 1 : 2;
+
+		int i = 0;
+		for( int x = 0; x < sx; x++ )
+			for( int z = 0; z < sz; z++ )
+				for( int y = 0; y < sy; y++, i++ )
+				{
+					final float top = cells[ i ];
+					if( top == 0 )
+						continue;
+
+					final float minX = cx + x, minY = cy + y, minZ = cz + z;
+					final float lo =
+							axis == 0 ? minX : axis == 1 ? minY : minZ;
+					final float hi = axis == 1 ? minY + top : lo + 1;
+
+					if( overlaps( a1, cellMin( a1, minX, minY, minZ ), cellMax( a1,
+							minX, minY, minZ, top ) )
+							&& overlaps( a2, cellMin( a2, minX, minY, minZ ),
+									cellMax( a2, minX, minY, minZ, top ) ) )
+					{
+						if( d > 0 && lo >= box[ axis + 3 ] - EPSILON )
+							d = Math.min( d, lo - box[ axis + 3 ] );
+						else if( d < 0 && hi <= box[ axis ] + EPSILON )
+							d = Math.max( d, hi - box[ axis ] );
+					}
+				}
+
+		return d;
+	}
+
+	private static float cellMin( int axis, float x, float y, float z )
+	{
+		return axis == 0 ? x : axis == 1 ? y : z;
+	}
+
+	private static float cellMax( int axis, float x, float y, float z, float top )
+	{
+		return axis == 0 ? x + 1 : axis == 1 ? y + top : z + 1;
+	}
+
+	private boolean overlaps( int axis, float min, float max )
+	{
+		return max > box[ axis ] + EPSILON && min < box[ axis + 3 ] - EPSILON;
+	}
+
+	private void translate( int axis, float d )
+	{
+		box[ axis ] += d;
+		box[ axis + 3 ] += d;
+	}
+
+	/**
+	 * Copies the blocks that the box could touch on its way
+	 * 
+	 * @param dx
+	 * @param dy
+	 * @param dz
+	 * @param stepHeight
+	 */
+	private void gather( float dx, float dy, float dz, float stepHeight )
+	{
+		cx = ( int ) Math.floor( box[ 0 ] + Math.min( dx, 0 ) );
+		cy = ( int ) Math.floor( box[ 1 ] + Math.min( dy, 0 ) );
+		cz = ( int ) Math.floor( box[ 2 ] + Math.min( dz, 0 ) );
+		sx = ( int ) Math.floor( box[ 3 ] + Math.max( dx, 0 ) ) - cx + 1;
+		sy =
+				( int ) Math.floor( box[ 4 ] + Math.max( dy, 0 ) + stepHeight ) - cy
+						+ 1;
+		sz = ( int ) Math.floor( box[ 5 ] + Math.max( dz, 0 ) ) - cz + 1;
+
+		if( cells.length < sx * sy * sz )
+			cells = new float[sx * sy * sz];
+
+		// unloaded chunks are skipped, and we can walk through them
+		Arrays.fill( cells, 0, sx * sy * sz, 0 );
+		world.visitBox( cx, cy, cz, cx + sx - 1, cy + sy - 1, cz + sz - 1,
+				gatherer );
+	}
+
+	/**
+	 * @param blockType
+	 * @return How far up the block is solid
+	 */
+	private static float solidity( byte blockType )
+	{
+		final Block b = BlockFactory.getBlock( blockType );
+
+		if( b == null || b == Block.Water || b == Block.StillWater )
+			return 0;
+		else if( b == Block.Slab )
+			return 0.5f;
+
+		return 1;
+	}
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
 
 import com.ryanm.droid.rugl.Game;
@@ -24,8 +25,42 @@ import com.ryanm.minedroid.nbt.TagLoader;
  */
 public class MineDroidActivity extends GameActivity
 {
+	/**
+	 * How often we check on the spawn area while it's being loaded, in
+	 * milliseconds
+	 */
+	private static final long PROGRESS_INTERVAL = 100;
+
 	private ProgressDialog loadDialog;
 
+	private final Handler handler = new Handler();
+
+	private World world;
+
+	/**
+	 * Keeps the load dialog up to date until the spawn area is ready
+	 */
+	private final Runnable progressUpdate = new Runnable(){
+		@Override
+		public void run()
+		{
+			if( loadDialog == null )
+				return;
+
+			if( world.isPrewarming() )
+			{
+				loadDialog.setProgress( ( int ) ( 100 * world
+						.getPrewarmProgress() ) );
+				handler.postDelayed( this, PROGRESS_INTERVAL );
+			}
+			else
+			{
+				loadDialog.dismiss();
+				loadDialog = null;
+			}
+		}
+	};
+
 	@Override
 	protected void onCreate( final Bundle savedInstanceState )
 	{
@@ -37,20 +72,36 @@ public class MineDroidActivity extends GameActivity
 
 		final File dir = new File( worldFileName );
 
-		final ProgressDialog pd =
-				ProgressDialog.show( this, "", "Loading level.dat", true, true,
-						new DialogInterface.OnCancelListener(){
-							@Override
-							public void onCancel( final DialogInterface dialog )
-							{
-								MineDroidActivity.this.finish();
-							}
-						} );
-		loadDialog = pd;
+		// the dialog stays up until the area around the player is ready
+		loadDialog = new ProgressDialog( this );
+		loadDialog.setProgressStyle( ProgressDialog.STYLE_HORIZONTAL );
+		loadDialog.setIndeterminate( true );
+		loadDialog.setMessage( "Loading level.dat" );
+		loadDialog.setCancelable( true );
+		loadDialog.setOnCancelListener( new DialogInterface.OnCancelListener(){
+			@Override
+			public void onCancel( final DialogInterface dialog )
+			{
+				MineDroidActivity.this.finish();
+			}
+		} );
+		loadDialog.show();
+
+		final float[] knownPosition =
+				getIntent().getExtras().getFloatArray( "position" );
+		if( knownPosition != null )
+		{
+			// the world chooser has already read level.dat for us
+			launch( dir, new Vector3f( knownPosition[ 0 ], knownPosition[ 1 ],
+					knownPosition[ 2 ] ) );
+			return;
+		}
 
 		// It's verboten to do IO on the main event thread, so let's
-		// load level.dat using the resourceloader
-		final TagLoader tl = new TagLoader( new File( dir, "level.dat" ) ){
+		// load level.dat using the resourceloader. We only need the
+		// player position, so don't bother decoding the rest
+		final TagLoader tl =
+				new TagLoader( new File( dir, "level.dat" ), "Data/Player/Pos" ){
 			@Override
 			public void complete()
 			{
@@ -74,25 +125,13 @@ public class MineDroidActivity extends GameActivity
 						{
 							try
 							{
-								final Tag player = resource.findTagByName( "Player" );
-								final Tag pos = player.findTagByName( "Pos" );
-
-								final Tag[] tl =
-										( com.ryanm.minedroid.nbt.Tag[] ) pos.getValue();
+								final Tag[] tl = ( Tag[] ) resource.getValue();
 								final Vector3f p = new Vector3f();
 								p.x = ( ( Double ) tl[ 0 ].getValue() ).floatValue();
 								p.y = ( ( Double ) tl[ 1 ].getValue() ).floatValue();
 								p.z = ( ( Double ) tl[ 2 ].getValue() ).floatValue();
 
-								final World w = new World( dir, p );
-
-								final Game game =
-										new Game( MineDroidActivity.this,
-												GLVersion.OnePointZero, new BlockView( w ) );
-
-								pd.dismiss();
-
-								start( game, "therealryan+minedroid@gmail.com" );
+								launch( dir, p );
 							}
 							catch( final Exception e )
 							{
@@ -114,14 +153,45 @@ public class MineDroidActivity extends GameActivity
 		ResourceLoader.load( tl );
 	}
 
+	/**
+	 * Starts the game
+	 * 
+	 * @param dir
+	 *           world directory
+	 * @param position
+	 *           player position
+	 */
+	private void launch( final File dir, final Vector3f position )
+	{
+		// chunks start loading right away, while the surface is set up
+		world = new World( dir, position );
+
+		final Game game =
+				new Game( this, GLVersion.OnePointZero, new BlockView( world ) );
+
+		start( game, "therealryan+minedroid@gmail.com" );
+
+		if( loadDialog != null )
+		{
+			loadDialog.setMessage( "Loading chunks" );
+			loadDialog.setIndeterminate( false );
+			loadDialog.setMax( 100 );
+			loadDialog.setProgress( 0 );
+			handler.post( progressUpdate );
+		}
+	}
+
 	@Override
 	protected void onPause()
 	{
 		super.onPause();
 
+		handler.removeCallbacks( progressUpdate );
+
 		if( loadDialog != null )
 		{
 			loadDialog.dismiss();
+			loadDialog = null;
 		}
 	}
 }
@@ -1,13 +1,10 @@
 package com.ryanm.minedroid;
 
-import android.util.FloatMath;
-
 import com.ryanm.droid.rugl.input.TapPad;
 import com.ryanm.droid.rugl.util.FPSCamera;
 import com.ryanm.droid.rugl.util.geom.BoundingCuboid;
 import com.ryanm.droid.rugl.util.geom.Vector3f;
 import com.ryanm.droid.rugl.util.math.Range;
-import com.ryanm.minedroid.BlockFactory.Block;
 import com.ryanm.minedroid.ItemFactory.Item;
 import com.ryanm.minedroid.ui.GUI;
 import com.ryanm.preflect.annote.Category;
@@ -76,6 +73,18 @@ public class Player
 	@Category( "Clipping" )
 	public float crouchedEyeLevel = 0.65f;
 
+	/***/
+	@Variable( "Physics rate" )
+	@Summary( "Physics steps per second" )
+	@Category( "Motion" )
+	public int physicsRate = 60;
+
+	/***/
+	@Variable( "Max physics steps" )
+	@Summary( "The most physics steps we'll take in one frame. If we fall further behind than this, the extra time is dropped and the world slows down" )
+	@Category( "Motion" )
+	public int maxPhysicsSteps = 5;
+
 	/***/
 	public boolean onGround = false;
 
@@ -88,19 +97,32 @@ public class Player
 	/***/
 	public Vector3f velocity = new Vector3f();
 
-	// handy data structures for collision detection
-	private final Vector3f collideCorrection = new Vector3f();
+	/**
+	 * Position as of the previous physics step
+	 */
+	private final Vector3f previousPosition = new Vector3f();
 
 	/**
-	 * Bounding box of the player
+	 * Time that has passed but not yet been simulated
 	 */
-	public BoundingCuboid playerBounds = new BoundingCuboid( 0, 0, 0, 0, 0, 0 );
+	private float pendingTime = 0;
 
-	private final BoundingCuboid blockBounds = new BoundingCuboid( 0, 0, 0, 0,
-			0, 0 );
+	/**
+	 * The tallest ledge we'll walk up onto without jumping
+	 */
+	private static final float STEP_HEIGHT = 0.51f;
 
-	private final BoundingCuboid intersection = new BoundingCuboid( 0, 0, 0, 0,
-			0, 0 );
+	private final Collider collider;
+
+	/**
+	 * Desired, and then actual, movement for this step
+	 */
+	private final Vector3f motion = new Vector3f();
+
+	/**
+	 * Bounding box of the player
+	 */
+	public BoundingCuboid playerBounds = new BoundingCuboid( 0, 0, 0, 0, 0, 0 );
 
 	private final Vector3f forward = new Vector3f();
 
@@ -148,6 +170,7 @@ public class Player
 	public Player( final World world )
 	{
 		this.world = world;
+		collider = new Collider( world );
 		resetLocation();
 	}
 
@@ -157,10 +180,63 @@ public class Player
 	public void resetLocation()
 	{
 		position.set( world.startPosition );
+		previousPosition.set( position );
 		velocity.set( 0, 0, 0 );
+		pendingTime = 0;
+	}
+
+	/**
+	 * Advances the physics in fixed steps of 1/{@link #physicsRate} seconds,
+	 * so that movement doesn't depend on the frame rate. Time left over is
+	 * carried to the next frame and used to interpolate
+	 * {@link #getEyePosition(Vector3f)}
+	 * 
+	 * @param delta
+	 *           real time since the last frame
+	 * @param cam
+	 * @param gui
+	 */
+	public void update( final float delta, final FPSCamera cam, final GUI gui )
+	{
+		final float step = 1.0f / Math.max( 1, physicsRate );
+
+		pendingTime += delta;
+
+		int steps = 0;
+		while( pendingTime >= step && steps < maxPhysicsSteps )
+		{
+			previousPosition.set( position );
+			advance( step, cam, gui );
+			pendingTime -= step;
+			steps++;
+		}
+
+		if( pendingTime >= step )
+			// we can't keep up, so don't try to catch up later
+			pendingTime %= step;
+	}
+
+	/**
+	 * Gets the position to draw from, which lies between the last two physics
+	 * steps according to how much time has passed since the latest
+	 * 
+	 * @param dest
+	 * @return dest
+	 */
+	public Vector3f getEyePosition( final Vector3f dest )
+	{
+		final float a = Math.min( 1, pendingTime * Math.max( 1, physicsRate ) );
+
+		dest.set( previousPosition.x + ( position.x - previousPosition.x ) * a,
+				previousPosition.y + ( position.y - previousPosition.y ) * a,
+				previousPosition.z + ( position.z - previousPosition.z ) * a );
+
+		return dest;
 	}
 
 	/**
+	 * Takes one physics step
+	 * 
 	 * @param delta
 	 * @param cam
 	 * @param gui
@@ -193,114 +269,37 @@ public class Player
 			forward.y = 0;
 			forward.normalise();
 
-			position.x += gui.left.y * delta * forward.x * s;
-			position.z += gui.left.y * delta * forward.z * s;
+			motion.x = gui.left.y * delta * forward.x * s;
+			motion.z = gui.left.y * delta * forward.z * s;
 
-			position.x += -gui.left.x * delta * cam.right.x * s;
-			position.z += -gui.left.x * delta * cam.right.z * s;
+			motion.x += -gui.left.x * delta * cam.right.x * s;
+			motion.z += -gui.left.x * delta * cam.right.z * s;
 
 			// gravity
 			velocity.y += gravity * delta;
-			position.y += velocity.y * delta;
+			motion.y = velocity.y * delta;
 
 			// world collide
 			final float w = width / 2;
 			final float feet = height * ( crouched ? crouchedEyeLevel : eyeLevel );
 			final float head = height - feet;
-			playerBounds.set( position.x - w, position.y - feet, position.z - w,
-					position.x + w, position.y + head, position.z + w );
-
-			boolean groundHit = false;
 
-			for( float x = FloatMath.floor( playerBounds.x.getMin() ); x < playerBounds.x
-					.getMax(); x++ )
-				for( float z = FloatMath.floor( playerBounds.z.getMin() ); z < playerBounds.z
-						.getMax(); z++ )
-					for( float y = FloatMath.floor( playerBounds.y.getMin() ); y < playerBounds.y
-							.getMax(); y++ )
-					{
-						collideCorrection.set( 0, 0, 0 );
+			final int hits =
+					collider.move( position.x - w, position.y - feet, position.z - w,
+							position.x + w, position.y + head, position.z + w, motion,
+							STEP_HEIGHT );
 
-						collide( x, y, z, collideCorrection );
+			Vector3f.add( position, motion, position );
 
-						playerBounds.translate( collideCorrection.x,
-								collideCorrection.y, collideCorrection.z );
-						Vector3f.add( position, collideCorrection, position );
+			if( ( hits & ( Collider.HIT_DOWN | Collider.HIT_UP ) ) != 0 )
+				velocity.y = 0;
 
-						if( collideCorrection.y != 0
-								&& Math.signum( collideCorrection.y ) != Math
-										.signum( velocity.y ) )
-							velocity.y = 0;
+			onGround = ( hits & Collider.HIT_DOWN ) != 0;
 
-						groundHit |= collideCorrection.y > 0;
-					}
-
-			onGround = groundHit;
+			playerBounds.set( position.x - w, position.y - feet, position.z - w,
+					position.x + w, position.y + head, position.z + w );
 		}
 
 		position.y = Range.limit( position.y, 1, 127 );
 	}
-
-	/**
-	 * Collides a point against the world's blocks, computes the smallest
-	 * correction to rectify any collision
-	 * 
-	 * @param x
-	 * @param y
-	 * @param z
-	 * @param correction
-	 */
-	private void collide( float x, float y, float z, final Vector3f correction )
-	{
-		final byte bt = world.blockType( x, y, z );
-		final Block b = BlockFactory.getBlock( bt );
-
-		if( !( b == null || b == Block.Water || b == Block.StillWater ) )
-		{
-			x = FloatMath.floor( x );
-			y = FloatMath.floor( y );
-			z = FloatMath.floor( z );
-			blockBounds.set( x, y, z, x + 1, y + 1, z + 1 );
-
-			if( b == Block.Slab )
-				blockBounds.y.set( y, y + 0.5f );
-
-			if( playerBounds.intersection( blockBounds, intersection ) )
-				correction( intersection, collideCorrection );
-		}
-	}
-
-	/**
-	 * Calculates the minimum correction vector to move the point out of the unit
-	 * cube
-	 * 
-	 * @param intersection
-	 * @param correction
-	 */
-	private void correction( final BoundingCuboid intersection,
-			final Vector3f correction )
-	{
-		final float mx = intersection.x.getSpan();
-		final float my = intersection.y.getSpan();
-		final float mz = intersection.z.getSpan();
-
-		final float midpoint = playerBounds.y.toValue( 0.5f );
-
-		if( my < 0.51f && intersection.y.toValue( 0.5f ) < midpoint )
-		{
-			correction.set( 0, my, 0 );
-
-			// smooth it out a little
-			correction.y *= 0.3f;
-		}
-		else if( mx < my && mx < mz )
-			correction.set(
-					intersection.x.toValue( 0.5f ) < position.x ? mx : -mx, 0, 0 );
-		else if( my < mz )
-			correction.set( 0, intersection.y.toValue( 0.5f ) < midpoint ? my
-					: -my, 0 );
-		else
-			correction.set( 0, 0, intersection.z.toValue( 0.5f ) < position.z ? mz
-					: -mz );
-	}
 }
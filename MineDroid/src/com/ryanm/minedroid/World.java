@@ -6,6 +6,7 @@ import java.util.Comparator;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.ryanm.droid.rugl.Game;
@@ -23,9 +24,20 @@ import com.ryanm.droid.rugl.util.geom.ReadableVector3f;
 import com.ryanm.droid.rugl.util.geom.Vector3f;
 import com.ryanm.droid.rugl.util.geom.Vector3i;
 import com.ryanm.droid.rugl.util.math.Range;
+import com.ryanm.minedroid.chunk.BulkEdit;
 import com.ryanm.minedroid.chunk.Chunk;
 import com.ryanm.minedroid.chunk.ChunkLoader;
+import com.ryanm.minedroid.chunk.ChunkMesh;
 import com.ryanm.minedroid.chunk.Chunklet;
+import com.ryanm.minedroid.chunk.Clipboard;
+import com.ryanm.minedroid.chunk.EditJournal;
+import com.ryanm.minedroid.chunk.EditLog;
+import com.ryanm.minedroid.chunk.FarTerrain;
+import com.ryanm.minedroid.chunk.GeometryGenerator;
+import com.ryanm.minedroid.chunk.LightEngine;
+import com.ryanm.minedroid.chunk.RegionBatcher;
+import com.ryanm.minedroid.chunk.UploadScheduler;
+import com.ryanm.minedroid.nbt.RegionPrefetchLoader;
 import com.ryanm.preflect.annote.Summary;
 import com.ryanm.preflect.annote.Variable;
 
@@ -46,6 +58,46 @@ public class World
 	@Variable( "Outline chunklets" )
 	public boolean drawOutlines = false;
 
+	/***/
+	@Variable( "Prefetch regions" )
+	@Summary( "Read newly-needed chunks from the region files in one sequential sweep" )
+	public boolean prefetchRegions = true;
+
+	/***/
+	@Variable( "Uploads per frame" )
+	@Summary( "The most chunklets whose new geometry is swapped in each frame" )
+	public int uploadsPerFrame = 4;
+
+	/***/
+	@Variable( "Upload bytes per frame" )
+	@Summary( "Roughly how much new chunklet geometry is uploaded each frame" )
+	public int uploadBytesPerFrame = 128 * 1024;
+
+	/***/
+	@Variable( "Time of day" )
+	@Summary( "0 is midnight, 0.5 is noon" )
+	public float timeOfDay = 0.5f;
+
+	/***/
+	@Variable( "Day length" )
+	@Summary( "Seconds in a full day-night cycle, or 0 to stop the clock" )
+	public float dayLength = 0;
+
+	/***/
+	@Variable( "Batch chunklets" )
+	@Summary( "Draw the solid geometry of 2x2x2 blocks of chunklets together" )
+	public boolean batchChunklets = true;
+
+	/***/
+	@Variable( "LOD distance" )
+	@Summary( "Chunks further than this many blocks away are drawn with simplified geometry, 0 for full detail everywhere" )
+	public float lodDistance = 40;
+
+	/***/
+	@Variable( "Far terrain distance" )
+	@Summary( "How far out to draw the rough surface of the world beyond the loaded chunks, in blocks. 0 to disable" )
+	public int farTerrainDistance = 256;
+
 	/**
 	 * For drawing the wireframes
 	 */
@@ -56,6 +108,31 @@ public class World
 	 */
 	public final File dir;
 
+	/**
+	 * Keeps the lighting up to date as blocks are changed
+	 */
+	public final LightEngine lighting = new LightEngine( this );
+
+	/**
+	 * Paces the arrival of new chunklet geometry
+	 */
+	public final UploadScheduler uploads = new UploadScheduler();
+
+	/**
+	 * Combines the solid geometry of neighbouring chunklets
+	 */
+	private final RegionBatcher batcher = new RegionBatcher( this );
+
+	/**
+	 * Scenery beyond the load radius
+	 */
+	private final FarTerrain farTerrain;
+
+	/**
+	 * Undo history of block changes
+	 */
+	public final EditJournal journal = new EditJournal( 16384 );
+
 	private int loadradius = 2;
 
 	/**
@@ -96,6 +173,51 @@ public class World
 
 	private final ColouredShape blockPreviewShape;
 
+	/**
+	 * <code>true</code> once we've had a GL surface
+	 */
+	private boolean surfaceCreated = false;
+
+	/**
+	 * How long we'll spend getting the spawn area ready before showing
+	 * whatever we have, in milliseconds
+	 */
+	private static final long PREWARM_LIMIT = 20000;
+
+	/**
+	 * <code>true</code> while we're getting the spawn area ready to show.
+	 * Chunks are completed on the loading thread, so they don't have to wait
+	 * for the game loop, and each is meshed as soon as it and its neighbours
+	 * are loaded rather than waiting to be seen. Uploads are not rationed
+	 */
+	private volatile boolean prewarming = true;
+
+	/**
+	 * When prewarming started, as {@link SystemClock#uptimeMillis()}
+	 */
+	private final long prewarmStart = SystemClock.uptimeMillis();
+
+	/**
+	 * Guards changes to the layout of the chunk array, as chunks can be
+	 * added from the loading thread while prewarming
+	 */
+	private final Object chunkLock = new Object();
+
+	/**
+	 * Chunk loads issued while prewarming that have yet to complete
+	 */
+	private volatile int prewarmLoads = 0;
+
+	/**
+	 * Chunk loads issued while prewarming
+	 */
+	private volatile int prewarmLoadsIssued = 0;
+
+	/**
+	 * Chunks around the start that have their geometry on the GPU
+	 */
+	private volatile int prewarmMeshed = 0;
+
 	/**
 	 * @param dir
 	 * @param startPosition
@@ -104,6 +226,7 @@ public class World
 	{
 		this.dir = dir;
 		this.startPosition = startPosition;
+		farTerrain = new FarTerrain( dir );
 
 		chunkPosX = ( int ) Math.floor( startPosition.getX() / 16.0f );
 		chunkPosZ = ( int ) Math.floor( startPosition.getZ() / 16.0f );
@@ -112,13 +235,25 @@ public class World
 			@Override
 			public void onSurfaceCreated()
 			{
-				setLoadRadius( loadradius );
+				ChunkMesh.surfaceCreated();
+				batcher.clear();
+
+				// the first time round nothing has been uploaded yet, so the
+				// chunks we started loading in the constructor are fine.
+				// After that the meshes have been lost with the old surface
+				if( surfaceCreated )
+					reload();
+
+				surfaceCreated = true;
 			}
 		} );
 
 		blockPreviewShape =
 				new ColouredShape( WireUtil.unitCube(), Colour.black,
 						WireUtil.state );
+
+		// start loading now, while the GL surface is being set up
+		fillChunks();
 	}
 
 	/**
@@ -146,40 +281,51 @@ public class World
 	{
 		boolean chunksDirty = false;
 
-		final int cx = ( int ) Math.floor( posX / 16 );
-		if( cx < chunkPosX )
-		{
-			shiftUpX();
-			chunkPosX--;
-			chunksDirty = true;
-		}
-		else if( cx > chunkPosX )
+		synchronized( chunkLock )
 		{
-			shiftDownX();
-			chunkPosX++;
-			chunksDirty = true;
-		}
+			final int cx = ( int ) Math.floor( posX / 16 );
+			if( cx < chunkPosX )
+			{
+				shiftUpX();
+				chunkPosX--;
+				chunksDirty = true;
+			}
+			else if( cx > chunkPosX )
+			{
+				shiftDownX();
+				chunkPosX++;
+				chunksDirty = true;
+			}
 
-		final int cz = ( int ) Math.floor( posZ / 16 );
-		if( cz < chunkPosZ )
-		{
-			shiftUpZ();
-			chunkPosZ--;
-			chunksDirty = true;
-		}
-		else if( cz > chunkPosZ )
-		{
-			shiftDownZ();
-			chunkPosZ++;
-			chunksDirty = true;
+			final int cz = ( int ) Math.floor( posZ / 16 );
+			if( cz < chunkPosZ )
+			{
+				shiftUpZ();
+				chunkPosZ--;
+				chunksDirty = true;
+			}
+			else if( cz > chunkPosZ )
+			{
+				shiftDownZ();
+				chunkPosZ++;
+				chunksDirty = true;
+			}
 		}
 
 		if( chunksDirty )
 		{ // load new chunks
+			// we've moved on from the spawn area
+			prewarming = false;
+
 			Log.i( Game.RUGL_TAG, "Entered chunk " + chunkPosX + ", " + chunkPosZ );
 
 			fillChunks();
 		}
+
+		// remesh anything that has been relit
+		Chunklet relit;
+		while( ( relit = lighting.pollRelit() ) != null )
+			relit.lightDirty();
 	}
 
 	private void shiftDownX()
@@ -263,6 +409,22 @@ public class World
 			muState.dirty = false;
 		}
 
+		int budget;
+		if( prewarming )
+		{
+			prewarm();
+
+			// nothing is being shown yet, so there's no frame rate to
+			// protect
+			uploads.process( eye, Integer.MAX_VALUE, Integer.MAX_VALUE );
+			budget = uploadBytesPerFrame;
+		}
+		else
+			budget =
+					uploadBytesPerFrame
+							- uploads.process( eye, uploadsPerFrame,
+									uploadBytesPerFrame );
+
 		Chunklet c = getChunklet( eye.x, eye.y, eye.z );
 
 		if( c != null )
@@ -366,20 +528,47 @@ public class World
 
 		GLUtil.checkGLError();
 
+		if( farTerrainDistance > 0 )
+		{
+			// surface scans decode whole regions, so they wait until the
+			// spawn chunks are in rather than competing with them
+			if( !prewarming )
+				farTerrain.update( eye.x, eye.z, farTerrainDistance );
+			farTerrain.draw( frustum, chunkPosX - loadradius, chunkPosZ
+					- loadradius, chunkPosX + loadradius, chunkPosZ + loadradius );
+		}
+		else
+			farTerrain.clear();
+
+		ChunkMesh.begin( BlockFactory.state );
+
 		// solid stuff from near to far
 		for( int i = 0; i < renderListSize; i++ )
 		{
-			renderList[ i ].drawSolid( renderer );
+			renderList[ i ].parent.selectDetail( eye.x, eye.z, lodDistance );
+
+			if( !batchChunklets || !batcher.add( renderList[ i ] ) )
+				renderList[ i ].drawSolid();
 
 			if( !renderList[ i ].isEmpty() )
 				renderedChunklets++;
 		}
 
+		if( batchChunklets )
+			budget -= batcher.flush( budget );
+		else if( batcher.getBatchCount() > 0 )
+			batcher.clear();
+
 		GLUtil.checkGLError();
 
 		// translucent stuff from far to near
 		for( int i = renderListSize - 1; i >= 0; i-- )
-			renderList[ i ].drawTransparent( renderer );
+			renderList[ i ].drawTransparent();
+
+		ChunkMesh.end();
+
+		// tidy the buffer pool with whatever is left of the budget
+		ChunkMesh.compact( budget );
 
 		GLUtil.checkGLError();
 
@@ -410,40 +599,240 @@ public class World
 
 	private void fillChunks()
 	{
-		for( int i = 0; i < chunks.length; i++ )
-			for( int j = 0; j < chunks[ i ].length; j++ )
+		if( prefetchRegions )
+		{
+			final int[] xs = new int[chunks.length * chunks.length];
+			final int[] zs = new int[xs.length];
+			int count = 0;
+
+			for( int i = 0; i < chunks.length; i++ )
+				for( int j = 0; j < chunks[ i ].length; j++ )
+				{
+					final int x = chunkPosX + i - getLoadRadius();
+					final int z = chunkPosZ + j - getLoadRadius();
+
+					if( getChunk( x, z ) == null )
+					{
+						xs[ count ] = x;
+						zs[ count ] = z;
+						count++;
+					}
+				}
+
+			if( count > 1 )
+				ResourceLoader.load( new RegionPrefetchLoader( dir, xs, zs, count ) );
+		}
+
+		// nearest first, so there's something to see as soon as possible
+		for( int ring = 0; ring <= getLoadRadius(); ring++ )
+			for( int i = 0; i < chunks.length; i++ )
+				for( int j = 0; j < chunks[ i ].length; j++ )
+					if( Math.max( Math.abs( i - getLoadRadius() ),
+							Math.abs( j - getLoadRadius() ) ) == ring )
+						loadChunk( i, j );
+	}
+
+	/**
+	 * Starts loading a chunk, if it isn't already
+	 * 
+	 * @param caix
+	 *           index into the chunk array
+	 * @param caiz
+	 *           index into the chunk array
+	 */
+	private void loadChunk( final int caix, final int caiz )
+	{
+		final int x = chunkPosX + caix - getLoadRadius();
+		final int z = chunkPosZ + caiz - getLoadRadius();
+
+		if( getChunk( x, z ) == null )
+		{
+			final boolean prewarm = prewarming;
+			if( prewarm )
+			{
+				prewarmLoadsIssued++;
+				prewarmLoads++;
+			}
+
+			final ChunkLoader cl = new ChunkLoader( this, x, z ){
+				@Override
+				public void complete()
+				{
+					if( prewarm )
+						prewarmLoads--;
+
+					if( resource != null && adopt( resource ) && prewarm
+							&& prewarming )
+						meshAround( x, z );
+				}
+			};
+
+			// while prewarming there might not be a game loop to complete
+			// the chunk on yet
+			cl.selfCompleting = prewarm;
+
+			ResourceLoader.load( cl );
+		}
+	}
+
+	/**
+	 * Puts a freshly-loaded chunk into the chunk array, if it still belongs
+	 * there. This can be called from the loading thread
+	 * 
+	 * @param chunk
+	 * @return <code>true</code> if the chunk was added
+	 */
+	private boolean adopt( final Chunk chunk )
+	{
+		synchronized( chunkLock )
+		{
+			// we may have moved since it was asked for
+			final int caix = chunk.chunkX - chunkPosX + getLoadRadius();
+			final int caiz = chunk.chunkZ - chunkPosZ + getLoadRadius();
+
+			if( !Range.inRange( caix, 0, chunks.length - 1 )
+					|| !Range.inRange( caiz, 0, chunks[ caix ].length - 1 )
+					|| chunks[ caix ][ caiz ] != null )
+			{
+				chunk.unload();
+				return false;
+			}
+
+			chunks[ caix ][ caiz ] = chunk;
+		}
+
+		// need to re-evaluate the geometry of neighbouring chunks
+		final int x = chunk.chunkX, z = chunk.chunkZ;
+		Chunk c;
+		if( ( c = getLoadedChunk( x - 1, z ) ) != null )
+			c.geomDirty();
+		if( ( c = getLoadedChunk( x + 1, z ) ) != null )
+			c.geomDirty();
+		if( ( c = getLoadedChunk( x, z - 1 ) ) != null )
+			c.geomDirty();
+		if( ( c = getLoadedChunk( x, z + 1 ) ) != null )
+			c.geomDirty();
+
+		return true;
+	}
+
+	/**
+	 * Starts generating geometry for the spawn chunks around a newly-arrived
+	 * one that now have all their neighbours. Called from the loading thread
+	 * while prewarming, so meshing gets going before there's a surface to
+	 * draw on
+	 * 
+	 * @param x
+	 *           chunk coordinate of the new arrival
+	 * @param z
+	 *           chunk coordinate of the new arrival
+	 */
+	private void meshAround( final int x, final int z )
+	{
+		final int r = Math.max( 0, getLoadRadius() - 1 );
+
+		for( int cx = x - 1; cx <= x + 1; cx++ )
+			for( int cz = z - 1; cz <= z + 1; cz++ )
+			{
+				if( Math.abs( cx - chunkPosX ) > r
+						|| Math.abs( cz - chunkPosZ ) > r )
+					continue;
+
+				final Chunk c = getLoadedChunk( cx, cz );
+				if( c == null || !neighboursLoaded( cx, cz ) )
+					continue;
+
+				for( int k = 0; k < c.chunklets.length; k++ )
+					c.chunklets[ k ].generateGeometry( false );
+			}
+	}
+
+	/**
+	 * @param x
+	 * @param z
+	 * @return <code>true</code> if all eight chunks around the specified one
+	 *         are loaded
+	 */
+	private boolean neighboursLoaded( final int x, final int z )
+	{
+		for( int cx = x - 1; cx <= x + 1; cx++ )
+			for( int cz = z - 1; cz <= z + 1; cz++ )
+				if( getLoadedChunk( cx, cz ) == null )
+					return false;
+		return true;
+	}
+
+	/**
+	 * Keeps count of how many of the spawn chunks have their geometry on the
+	 * GPU. Once every load is in, anything that wasn't meshed on arrival
+	 * because a neighbour is missing is meshed here. Prewarming ends when
+	 * they're all done, or when we've spent too long at it
+	 */
+	private void prewarm()
+	{
+		if( SystemClock.uptimeMillis() - prewarmStart > PREWARM_LIMIT )
+		{
+			prewarming = false;
+			Log.w( Game.RUGL_TAG, "Gave up waiting for the spawn area" );
+			return;
+		}
+
+		final boolean loaded = prewarmLoads <= 0;
+		final int r = Math.max( 0, getLoadRadius() - 1 );
+		int meshed = 0;
+
+		for( int i = getLoadRadius() - r; i <= getLoadRadius() + r; i++ )
+			for( int j = getLoadRadius() - r; j <= getLoadRadius() + r; j++ )
 			{
-				final int caix = i, caiz = j;
-				final int x = chunkPosX + i - getLoadRadius();
-				final int z = chunkPosZ + j - getLoadRadius();
-
-				if( getChunk( x, z ) == null )
-					ResourceLoader.load( new ChunkLoader( this, x, z ){
-						@Override
-						public void complete()
-						{
-							if( resource != null
-									&& Range.inRange( caix, 0, chunks.length - 1 )
-									&& Range
-											.inRange( caiz, 0, chunks[ caix ].length - 1 ) )
-							{
-								chunks[ caix ][ caiz ] = resource;
-
-								// need to re-evaluate the geometry of
-								// neighbouring chunks
-								Chunk c;
-								if( ( c = getChunk( x - 1, z ) ) != null )
-									c.geomDirty();
-								if( ( c = getChunk( x + 1, z ) ) != null )
-									c.geomDirty();
-								if( ( c = getChunk( x, z - 1 ) ) != null )
-									c.geomDirty();
-								if( ( c = getChunk( x, z + 1 ) ) != null )
-									c.geomDirty();
-							}
-						}
-					} );
+				final Chunk c = chunks[ i ][ j ];
+
+				// missing chunks have nothing to wait for, once we know
+				// they're missing
+				boolean current = c != null || loaded;
+
+				if( c != null )
+					for( int k = 0; k < c.chunklets.length; k++ )
+					{
+						if( loaded )
+							c.chunklets[ k ].generateGeometry( false );
+						current &= c.chunklets[ k ].isGeometryCurrent();
+					}
+
+				if( current )
+					meshed++;
 			}
+
+		prewarmMeshed = meshed;
+
+		if( loaded && meshed == ( 2 * r + 1 ) * ( 2 * r + 1 ) )
+		{
+			prewarming = false;
+			Log.i( Game.RUGL_TAG, "Spawn area ready" );
+		}
+	}
+
+	/**
+	 * @return <code>true</code> while the area around the start position is
+	 *         still being loaded and meshed
+	 */
+	public boolean isPrewarming()
+	{
+		return prewarming;
+	}
+
+	/**
+	 * @return How far along getting the spawn area ready we are, from 0 to 1
+	 */
+	public float getPrewarmProgress()
+	{
+		if( !prewarming )
+			return 1;
+
+		final int r = Math.max( 0, getLoadRadius() - 1 );
+		final int meshTotal = ( 2 * r + 1 ) * ( 2 * r + 1 );
+		final int done = prewarmLoadsIssued - prewarmLoads + prewarmMeshed;
+
+		return ( float ) done / ( prewarmLoadsIssued + meshTotal );
 	}
 
 	/**
@@ -455,16 +844,34 @@ public class World
 	 */
 	public Chunk getChunk( final int x, final int z )
 	{
+		// read once, the lighting thread calls this while the render thread
+		// may be replacing the array
+		final Chunk[][] ca = chunks;
 		final int dx = x - chunkPosX;
 		final int dz = z - chunkPosZ;
-		final int caix = getLoadRadius() + dx;
-		final int caiz = getLoadRadius() + dz;
+		final int caix = ca.length / 2 + dx;
+		final int caiz = ca.length / 2 + dz;
 
-		if( caix < 0 || caix >= chunks.length || caiz < 0
-				|| caiz >= chunks[ caix ].length )
+		if( caix < 0 || caix >= ca.length || caiz < 0
+				|| caiz >= ca[ caix ].length )
 			return null;
 		else
-			return chunks[ caix ][ caiz ];
+			return ca[ caix ][ caiz ];
+	}
+
+	/**
+	 * Gets a loaded chunk from off the render thread. The chunk array can be
+	 * shifted or replaced under us, so we check that what we find is the
+	 * chunk we asked for
+	 * 
+	 * @param x
+	 * @param z
+	 * @return the so-indexed chunk, or <code>null</code> if it is not loaded
+	 */
+	public Chunk getLoadedChunk( final int x, final int z )
+	{
+		final Chunk c = getChunk( x, z );
+		return c != null && c.chunkX == x && c.chunkZ == z ? c : null;
 	}
 
 	/**
@@ -507,6 +914,528 @@ public class World
 		return 0;
 	}
 
+	/**
+	 * Walks a ray through the blocks it passes, cell by cell, until it finds
+	 * one that the filter accepts. The chunk is only looked up again when the
+	 * ray crosses into a new one
+	 * 
+	 * @param origin
+	 * @param direction
+	 *           need not be normalised
+	 * @param maxDistance
+	 *           how far along the ray to look, in blocks
+	 * @param filter
+	 *           decides which blocks stop the ray
+	 * @param hit
+	 *           filled with the details of the hit, if there is one
+	 * @return <code>true</code> if a block was hit. The ray stops without a
+	 *         hit if it reaches an unloaded chunk or leaves the world
+	 */
+	public boolean raycast( final ReadableVector3f origin,
+			final ReadableVector3f direction, final float maxDistance,
+			final BlockFilter filter, final RayHit hit )
+	{
+		final float ox = origin.getX(), oy = origin.getY(), oz = origin.getZ();
+		float dx = direction.getX(), dy = direction.getY(), dz = direction.getZ();
+
+		final float length = ( float ) Math.sqrt( dx * dx + dy * dy + dz * dz );
+		if( length == 0 )
+			return false;
+		dx /= length;
+		dy /= length;
+		dz /= length;
+
+		int x = ( int ) Math.floor( ox );
+		int y = ( int ) Math.floor( oy );
+		int z = ( int ) Math.floor( oz );
+
+		final int stepX = dx > 0 ? 1 : dx < 0 ? -1 : 0;
+		final int stepY = dy > 0 ? 1 : dy < 0 ? -1 : 0;
+		final int stepZ = dz > 0 ? 1 : dz < 0 ? -1 : 0;
+
+		// distance along the ray between cell boundaries on each axis
+		final float deltaX =
+				stepX == 0 ? Float.POSITIVE_INFINITY : 1 / Math.abs( dx );
+		final float deltaY =
+				stepY == 0 ? Float.POSITIVE_INFINITY : 1 / Math.abs( dy );
+		final float deltaZ =
+				stepZ == 0 ? Float.POSITIVE_INFINITY : 1 / Math.abs( dz );
+
+		// distance along the ray to the next boundary on each axis
+		float nextX = boundary( ox, x, stepX, deltaX );
+		float nextY = boundary( oy, y, stepY, deltaY );
+		float nextZ = boundary( oz, z, stepZ, deltaZ );
+
+		int nx = 0, ny = 0, nz = 0;
+		float t = 0;
+		Chunk chunk = null;
+
+		while( t <= maxDistance )
+		{
+			if( y >= 0 && y < 128 )
+			{
+				final int cx = x >> 4, cz = z >> 4;
+				if( chunk == null || chunk.chunkX != cx || chunk.chunkZ != cz )
+				{
+					chunk = getChunk( cx, cz );
+					if( chunk == null )
+						return false;
+				}
+
+				final byte bt = chunk.blockType( x & 15, y, z & 15 );
+				if( filter.accept( bt ) )
+				{
+					hit.block.set( x, y, z );
+					hit.normal.set( nx, ny, nz );
+					hit.placement.set( x + nx, y + ny, z + nz );
+					hit.blockType = bt;
+					hit.distance = t;
+					hit.chunk = chunk;
+					return true;
+				}
+			}
+			else if( y < 0 && stepY <= 0 || y >= 128 && stepY >= 0 )
+				// heading away from the world
+				return false;
+
+			if( nextX < nextY && nextX < nextZ )
+			{
+				x += stepX;
+				t = nextX;
+				nextX += deltaX;
+				nx = -stepX;
+				ny = 0;
+				nz = 0;
+			}
+			else if( nextY < nextZ )
+			{
+				y += stepY;
+				t = nextY;
+				nextY += deltaY;
+				nx = 0;
+				ny = -stepY;
+				nz = 0;
+			}
+			else
+			{
+				z += stepZ;
+				t = nextZ;
+				nextZ += deltaZ;
+				nx = 0;
+				ny = 0;
+				nz = -stepZ;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Visits every loaded block in a box. Blocks are visited chunk by chunk,
+	 * and each chunk is only looked up once
+	 * 
+	 * @param x0
+	 *           minimum block coordinate
+	 * @param y0
+	 *           minimum block coordinate
+	 * @param z0
+	 *           minimum block coordinate
+	 * @param x1
+	 *           maximum block coordinate, inclusive
+	 * @param y1
+	 *           maximum block coordinate, inclusive
+	 * @param z1
+	 *           maximum block coordinate, inclusive
+	 * @param v
+	 * @return <code>false</code> if the visitor asked to stop
+	 */
+	public boolean visitBox( final int x0, final int y0, final int z0,
+			final int x1, final int y1, final int z1, final BlockVisitor v )
+	{
+		final int ylo = Math.max( 0, y0 ), yhi = Math.min( 127, y1 );
+		if( ylo > yhi )
+			return true;
+
+		for( int cx = x0 >> 4; cx <= x1 >> 4; cx++ )
+			for( int cz = z0 >> 4; cz <= z1 >> 4; cz++ )
+			{
+				final Chunk c = getChunk( cx, cz );
+				if( c == null )
+					continue;
+
+				final int bx0 = Math.max( x0 - cx * 16, 0 );
+				final int bx1 = Math.min( x1 - cx * 16, 15 );
+				final int bz0 = Math.max( z0 - cz * 16, 0 );
+				final int bz1 = Math.min( z1 - cz * 16, 15 );
+
+				for( int bx = bx0; bx <= bx1; bx++ )
+					for( int bz = bz0; bz <= bz1; bz++ )
+						if( !c.visitColumn( bx, bz, ylo, yhi, v ) )
+							return false;
+			}
+
+		return true;
+	}
+
+	/**
+	 * Visits every loaded block whose centre lies within a sphere. Blocks are
+	 * visited chunk by chunk, and each chunk is only looked up once
+	 * 
+	 * @param x
+	 *           centre
+	 * @param y
+	 *           centre
+	 * @param z
+	 *           centre
+	 * @param radius
+	 * @param v
+	 * @return <code>false</code> if the visitor asked to stop
+	 */
+	public boolean visitSphere( final float x, final float y, final float z,
+			final float radius, final BlockVisitor v )
+	{
+		final float r2 = radius * radius;
+		final int x0 = ( int ) Math.floor( x - radius );
+		final int x1 = ( int ) Math.floor( x + radius );
+		final int z0 = ( int ) Math.floor( z - radius );
+		final int z1 = ( int ) Math.floor( z + radius );
+
+		for( int cx = x0 >> 4; cx <= x1 >> 4; cx++ )
+			for( int cz = z0 >> 4; cz <= z1 >> 4; cz++ )
+			{
+				final Chunk c = getChunk( cx, cz );
+				if( c == null )
+					continue;
+
+				final int bx0 = Math.max( x0 - cx * 16, 0 );
+				final int bx1 = Math.min( x1 - cx * 16, 15 );
+				final int bz0 = Math.max( z0 - cz * 16, 0 );
+				final int bz1 = Math.min( z1 - cz * 16, 15 );
+
+				for( int bx = bx0; bx <= bx1; bx++ )
+					for( int bz = bz0; bz <= bz1; bz++ )
+					{
+						final float dx = cx * 16 + bx + 0.5f - x;
+						final float dz = cz * 16 + bz + 0.5f - z;
+						final float h2 = r2 - dx * dx - dz * dz;
+						if( h2 < 0 )
+							continue;
+
+						// the run of block centres within the sphere
+						final float h = ( float ) Math.sqrt( h2 );
+						final int ylo =
+								Math.max( 0, ( int ) Math.ceil( y - h - 0.5f ) );
+						final int yhi =
+								Math.min( 127, ( int ) Math.floor( y + h - 0.5f ) );
+
+						if( ylo <= yhi && !c.visitColumn( bx, bz, ylo, yhi, v ) )
+							return false;
+					}
+			}
+
+		return true;
+	}
+
+	/**
+	 * Starts a bulk edit. Relighting and remeshing wait until
+	 * {@link BulkEdit#finish()} is called
+	 * 
+	 * @param record
+	 *           <code>true</code> to keep an {@link EditLog} of the changes
+	 * @return the edit
+	 */
+	public BulkEdit beginEdit( final boolean record )
+	{
+		return new BulkEdit( this, record );
+	}
+
+	/**
+	 * Changes a single block, recording the change in the {@link #journal}
+	 * 
+	 * @param x
+	 *           block coordinate
+	 * @param y
+	 *           block coordinate
+	 * @param z
+	 *           block coordinate
+	 * @param blockType
+	 * @return <code>true</code> if the block was changed
+	 */
+	public boolean setBlock( final int x, final int y, final int z,
+			final byte blockType )
+	{
+		final BulkEdit edit = beginEdit( true );
+		final boolean changed = edit.set( x, y, z, blockType );
+		record( edit );
+		return changed;
+	}
+
+	/**
+	 * Finishes an edit and puts it in the {@link #journal}
+	 * 
+	 * @param edit
+	 * @return the changes made
+	 */
+	private EditLog record( final BulkEdit edit )
+	{
+		final EditLog log = edit.finish();
+		journal.record( log );
+		return log;
+	}
+
+	/**
+	 * Reverts the latest group of changes in the {@link #journal}
+	 */
+	@Variable( "Undo" )
+	@Summary( "Revert the last block change" )
+	public void undo()
+	{
+		journal.undo( this );
+	}
+
+	/**
+	 * Reapplies the latest undone group of changes in the {@link #journal}
+	 */
+	@Variable( "Redo" )
+	@Summary( "Reapply the last undone block change" )
+	public void redo()
+	{
+		journal.redo( this );
+	}
+
+	/**
+	 * Sets every loaded block in a box
+	 * 
+	 * @param x0
+	 *           minimum block coordinate
+	 * @param y0
+	 *           minimum block coordinate
+	 * @param z0
+	 *           minimum block coordinate
+	 * @param x1
+	 *           maximum block coordinate, inclusive
+	 * @param y1
+	 *           maximum block coordinate, inclusive
+	 * @param z1
+	 *           maximum block coordinate, inclusive
+	 * @param blockType
+	 * @return the changes made
+	 */
+	public EditLog fill( final int x0, final int y0, final int z0,
+			final int x1, final int y1, final int z1, final byte blockType )
+	{
+		return replace( x0, y0, z0, x1, y1, z1, null, blockType );
+	}
+
+	/**
+	 * Changes the blocks in a box that the filter accepts
+	 * 
+	 * @param x0
+	 *           minimum block coordinate
+	 * @param y0
+	 *           minimum block coordinate
+	 * @param z0
+	 *           minimum block coordinate
+	 * @param x1
+	 *           maximum block coordinate, inclusive
+	 * @param y1
+	 *           maximum block coordinate, inclusive
+	 * @param z1
+	 *           maximum block coordinate, inclusive
+	 * @param filter
+	 *           picks the blocks to replace, or <code>null</code> for all of
+	 *           them
+	 * @param blockType
+	 *           the replacement
+	 * @return the changes made
+	 */
+	public EditLog replace( final int x0, final int y0, final int z0,
+			final int x1, final int y1, final int z1, final BlockFilter filter,
+			final byte blockType )
+	{
+		final BulkEdit edit = beginEdit( true );
+
+		visitBox( x0, y0, z0, x1, y1, z1, new BlockVisitor(){
+			@Override
+			public boolean visit( final int x, final int y, final int z,
+					final byte type )
+			{
+				if( filter == null || filter.accept( type ) )
+					edit.set( x, y, z, blockType );
+				return true;
+			}
+		} );
+
+		return record( edit );
+	}
+
+	/**
+	 * Copies a box of blocks. Blocks that aren't loaded are copied as air
+	 * 
+	 * @param x0
+	 *           minimum block coordinate
+	 * @param y0
+	 *           minimum block coordinate
+	 * @param z0
+	 *           minimum block coordinate
+	 * @param x1
+	 *           maximum block coordinate, inclusive
+	 * @param y1
+	 *           maximum block coordinate, inclusive
+	 * @param z1
+	 *           maximum block coordinate, inclusive
+	 * @return the copied blocks
+	 */
+	public Clipboard copy( final int x0, final int y0, final int z0,
+			final int x1, final int y1, final int z1 )
+	{
+		final Clipboard c =
+				new Clipboard( x1 - x0 + 1, y1 - y0 + 1, z1 - z0 + 1 );
+
+		visitBox( x0, y0, z0, x1, y1, z1, new BlockVisitor(){
+			@Override
+			public boolean visit( final int x, final int y, final int z,
+					final byte type )
+			{
+				c.set( x - x0, y - y0, z - z0, type );
+				return true;
+			}
+		} );
+
+		return c;
+	}
+
+	/**
+	 * Pastes copied blocks back into the world
+	 * 
+	 * @param c
+	 * @param x
+	 *           where the minimum corner goes
+	 * @param y
+	 *           where the minimum corner goes
+	 * @param z
+	 *           where the minimum corner goes
+	 * @param skipAir
+	 *           <code>true</code> to leave the world alone where the copy
+	 *           has air
+	 * @return the changes made
+	 */
+	public EditLog paste( final Clipboard c, final int x, final int y,
+			final int z, final boolean skipAir )
+	{
+		final BulkEdit edit = beginEdit( true );
+
+		for( int i = 0; i < c.sizeX; i++ )
+			for( int k = 0; k < c.sizeZ; k++ )
+				for( int j = 0; j < c.sizeY; j++ )
+				{
+					final byte type = c.get( i, j, k );
+					if( type != 0 || !skipAir )
+						edit.set( x + i, y + j, z + k, type );
+				}
+
+		return record( edit );
+	}
+
+	/**
+	 * Reverts a set of changes
+	 * 
+	 * @param log
+	 * @return the changes made in reverting, which will undo the undo
+	 */
+	public EditLog undo( final EditLog log )
+	{
+		final BulkEdit edit = beginEdit( true );
+
+		for( int i = log.size() - 1; i >= 0; i-- )
+			edit.set( log.x( i ), log.y( i ), log.z( i ), log.oldType( i ) );
+
+		return record( edit );
+	}
+
+	/**
+	 * @param o
+	 *           ray origin on an axis
+	 * @param cell
+	 *           the cell containing the origin
+	 * @param step
+	 *           direction of travel
+	 * @param delta
+	 *           ray distance per cell
+	 * @return ray distance to the first cell boundary
+	 */
+	private static float boundary( final float o, final int cell,
+			final int step, final float delta )
+	{
+		if( step > 0 )
+			return ( cell + 1 - o ) * delta;
+		else if( step < 0 )
+			return ( o - cell ) * delta;
+
+		return Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @param x
+	 *           block coordinate
+	 * @param z
+	 *           block coordinate
+	 * @return The lowest y at which the sky is fully visible in that column,
+	 *         or -1 if the chunk is not loaded
+	 */
+	public int getHeight( final int x, final int z )
+	{
+		final Chunk c = getChunk( x >> 4, z >> 4 );
+
+		if( c == null )
+			return -1;
+
+		return c.height( x & 15, z & 15 );
+	}
+
+	/**
+	 * @param x
+	 *           block coordinate
+	 * @param y
+	 *           block coordinate
+	 * @param z
+	 *           block coordinate
+	 * @return <code>true</code> if nothing stands between that block and the
+	 *         sky. Unloaded chunks are taken to be open to the sky
+	 */
+	public boolean isSkyVisible( final int x, final int y, final int z )
+	{
+		return y >= getHeight( x, z );
+	}
+
+	/**
+	 * Moves the clock along and updates the sky light accordingly. Changing
+	 * the sky brightness only recolours meshes, no remeshing is needed
+	 * 
+	 * @param delta
+	 *           seconds
+	 */
+	public void advanceTime( final float delta )
+	{
+		if( dayLength > 0 )
+		{
+			timeOfDay += delta / dayLength;
+			timeOfDay -= ( float ) Math.floor( timeOfDay );
+		}
+
+		ChunkMesh.setSkyBrightness( getSkyBrightness() );
+	}
+
+	/**
+	 * @return The sky light multiplier for the current time of day, 1 at noon
+	 *         and 0.2 at midnight
+	 */
+	public float getSkyBrightness()
+	{
+		final float d = 0.5f - ( float ) Math.cos( timeOfDay * 2 * Math.PI );
+		return 0.2f + 0.8f * Math.max( 0, Math.min( 1, d ) );
+	}
+
 	/**
 	 * @param chunkRadius
 	 */
@@ -514,18 +1443,36 @@ public class World
 	@Summary( "The distance (in chunk units) at which to load chunks" )
 	public void setLoadRadius( final int chunkRadius )
 	{
+		// loading a configuration sets this whether it has changed or not,
+		// and there's no need to throw away what we've loaded
+		if( chunkRadius == loadradius )
+			return;
+
 		loadradius = chunkRadius;
+		reload();
+	}
+
+	/**
+	 * Unloads every chunk and starts loading them again
+	 */
+	private void reload()
+	{
+		// the spawn area we were preparing has gone
+		prewarming = false;
 
 		// I can't be bothered to work out the indices to do this
 		// properly, so brace yourself for the Madagascan strategy:
 
 		// RELOAD. EVERYTHING.
 
-		for( int i = 0; i < chunks.length; i++ )
-			for( int j = 0; j < chunks[ i ].length; j++ )
-				if( chunks[ i ][ j ] != null )
-					chunks[ i ][ j ].unload();
-		chunks = new Chunk[2 * chunkRadius + 1][2 * chunkRadius + 1];
+		synchronized( chunkLock )
+		{
+			for( int i = 0; i < chunks.length; i++ )
+				for( int j = 0; j < chunks[ i ].length; j++ )
+					if( chunks[ i ][ j ] != null )
+						chunks[ i ][ j ].unload();
+			chunks = new Chunk[2 * loadradius + 1][2 * loadradius + 1];
+		}
 
 		fillChunks();
 	}
@@ -539,6 +1486,102 @@ public class World
 		return loadradius;
 	}
 
+	/**
+	 * @param smooth
+	 */
+	@Variable( "Smooth lighting" )
+	@Summary( "Interpolate light across block faces and shade enclosed corners" )
+	public void setSmoothLighting( final boolean smooth )
+	{
+		if( smooth != GeometryGenerator.smoothLighting )
+		{
+			GeometryGenerator.smoothLighting = smooth;
+
+			for( int i = 0; i < chunks.length; i++ )
+				for( int j = 0; j < chunks[ i ].length; j++ )
+					if( chunks[ i ][ j ] != null )
+						for( final Chunklet c : chunks[ i ][ j ].chunklets )
+							c.lightDirty();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if smooth lighting is enabled
+	 */
+	@Variable( "Smooth lighting" )
+	public boolean isSmoothLighting()
+	{
+		return GeometryGenerator.smoothLighting;
+	}
+
+	/**
+	 * Picks out blocks of interest
+	 */
+	public interface BlockFilter
+	{
+		/**
+		 * @param blockType
+		 * @return <code>true</code> if the block is wanted
+		 */
+		public boolean accept( byte blockType );
+	}
+
+	/**
+	 * Receives the blocks found by {@link World#visitBox} and
+	 * {@link World#visitSphere}
+	 */
+	public interface BlockVisitor
+	{
+		/**
+		 * @param x
+		 *           block coordinate
+		 * @param y
+		 *           block coordinate
+		 * @param z
+		 *           block coordinate
+		 * @param blockType
+		 * @return <code>false</code> to stop visiting
+		 */
+		public boolean visit( int x, int y, int z, byte blockType );
+	}
+
+	/**
+	 * The result of a {@link World#raycast}
+	 */
+	public static class RayHit
+	{
+		/**
+		 * The block that was hit
+		 */
+		public final Vector3i block = new Vector3i();
+
+		/**
+		 * The normal of the face that the ray entered through, or zero if the
+		 * ray started inside the block
+		 */
+		public final Vector3i normal = new Vector3i();
+
+		/**
+		 * The cell in front of the hit face, where a new block would go
+		 */
+		public final Vector3i placement = new Vector3i();
+
+		/**
+		 * The type of the hit block
+		 */
+		public byte blockType;
+
+		/**
+		 * Distance along the ray to the hit face
+		 */
+		public float distance;
+
+		/**
+		 * The chunk containing the hit block
+		 */
+		public Chunk chunk;
+	}
+
 	private static class ChunkSorter implements Comparator<Chunklet>
 	{
 		private final Vector3f eye = new Vector3f();
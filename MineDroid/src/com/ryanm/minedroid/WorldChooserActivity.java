@@ -1,25 +1,33 @@
 package com.ryanm.minedroid;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
 
 import android.app.ListActivity;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import com.ryanm.droid.rugl.Game;
+
 /**
  * Entry point for application - searches for world files and also the user to
  * select one to launch
@@ -28,16 +36,28 @@ import android.widget.Toast;
  */
 public class WorldChooserActivity extends ListActivity
 {
-	private static FileFilter dirFilter = new FileFilter(){
-		@Override
-		public boolean accept( final File pathname )
-		{
-			return pathname.isDirectory() && pathname.listFiles() != null;
-		}
-	};
-
 	private File[] worlds = new File[0];
 
+	/**
+	 * World summaries, by directory
+	 */
+	private final Map<File, WorldInfo> info = new HashMap<File, WorldInfo>();
+
+	private final Map<File, Bitmap> thumbnails = new HashMap<File, Bitmap>();
+
+	private WorldAdapter adapter;
+
+	/**
+	 * The summary loader that is running, or <code>null</code>
+	 */
+	private InfoLoader infoLoader;
+
+	/**
+	 * <code>true</code> if worlds have been found while the summary loader
+	 * was running
+	 */
+	private boolean infoWanted = false;
+
 	@Override
 	protected void onCreate( final Bundle savedInstanceState )
 	{
@@ -56,6 +76,7 @@ public class WorldChooserActivity extends ListActivity
 		}
 
 		updateWorldList();
+		loadInfo();
 	}
 
 	@Override
@@ -69,8 +90,15 @@ public class WorldChooserActivity extends ListActivity
 		}
 		else
 		{
+			final File world = worlds[ position - 1 ];
 			final Intent i = new Intent( this, MineDroidActivity.class );
-			i.putExtra( "world", worlds[ position - 1 ].getAbsolutePath() );
+			i.putExtra( "world", world.getAbsolutePath() );
+
+			// save reading level.dat again if we can
+			final WorldInfo wi = info.get( world );
+			if( wi != null && wi.isPositionCurrent() )
+				i.putExtra( "position", new float[] { wi.position.x,
+						wi.position.y, wi.position.z } );
 
 			startActivity( i );
 		}
@@ -98,8 +126,127 @@ public class WorldChooserActivity extends ListActivity
 		pref.putString( "worlds", buff.toString() );
 		pref.commit();
 
-		setListAdapter( new ArrayAdapter<String>( this,
-				android.R.layout.simple_list_item_1, worldList ) );
+		adapter = new WorldAdapter( worldList );
+		setListAdapter( adapter );
+	}
+
+	/**
+	 * Starts summarising the worlds we haven't summarised yet. Only one
+	 * loader runs at a time: if one is already going, another is started
+	 * when it finishes
+	 */
+	private void loadInfo()
+	{
+		if( infoLoader != null )
+		{
+			infoWanted = true;
+			return;
+		}
+
+		final List<File> todo = new ArrayList<File>();
+		for( final File f : worlds )
+			if( !info.containsKey( f ) )
+				todo.add( f );
+
+		if( !todo.isEmpty() )
+		{
+			infoLoader = new InfoLoader();
+			infoLoader.execute( todo.toArray( new File[todo.size()] ) );
+		}
+	}
+
+	/**
+	 * Shows the world summaries, where we have them
+	 */
+	private class WorldAdapter extends ArrayAdapter<String>
+	{
+		private WorldAdapter( final List<String> items )
+		{
+			super( WorldChooserActivity.this, android.R.layout.simple_list_item_2,
+					android.R.id.text1, items );
+		}
+
+		@Override
+		public View getView( final int position, final View convertView,
+				final ViewGroup parent )
+		{
+			final View v = super.getView( position, convertView, parent );
+			final TextView title = ( TextView ) v.findViewById( android.R.id.text1 );
+			final TextView detail = ( TextView ) v.findViewById( android.R.id.text2 );
+
+			final WorldInfo wi =
+					position == 0 || position > worlds.length ? null
+							: info.get( worlds[ position - 1 ] );
+			final Bitmap thumb = wi == null ? null : thumbnails.get( wi.dir );
+
+			if( wi != null )
+				title.setText( wi.name );
+			detail.setText( wi == null ? "" : wi.describe() );
+			title.setCompoundDrawablesWithIntrinsicBounds( thumb == null ? null
+					: new BitmapDrawable( getResources(), thumb ), null, null, null );
+
+			return v;
+		}
+	}
+
+	/**
+	 * Fills in the world summaries: first from the cache so there's something
+	 * to see straight away, then rebuilding any that are out of date
+	 */
+	private class InfoLoader extends AsyncTask<File, WorldInfo, Void>
+	{
+		@Override
+		protected Void doInBackground( final File... dirs )
+		{
+			for( final File dir : dirs )
+			{
+				if( isCancelled() )
+					break;
+
+				final WorldInfo cached = WorldInfo.readCached( dir );
+				if( cached != null )
+					publishProgress( cached );
+
+				if( cached == null || !cached.isCurrent() )
+					try
+					{
+						publishProgress( WorldInfo.load( dir ) );
+					}
+					catch( final Exception e )
+					{
+						// one odd world shouldn't stop us listing the rest
+						Log.w( Game.RUGL_TAG, "Could not summarise " + dir, e );
+					}
+			}
+
+			return null;
+		}
+
+		@Override
+		protected void onPostExecute( final Void result )
+		{
+			infoLoader = null;
+
+			if( infoWanted )
+			{
+				infoWanted = false;
+				loadInfo();
+			}
+		}
+
+		@Override
+		protected void onProgressUpdate( final WorldInfo... values )
+		{
+			final WorldInfo wi = values[ 0 ];
+			info.put( wi.dir, wi );
+
+			if( wi.thumbnail != null )
+				thumbnails.put( wi.dir, Bitmap.createBitmap( wi.thumbnail,
+						WorldInfo.THUMBNAIL_SIZE, WorldInfo.THUMBNAIL_SIZE,
+						Bitmap.Config.ARGB_8888 ) );
+
+			adapter.notifyDataSetChanged();
+		}
 	}
 
 	private class WorldFinder extends AsyncTask<Void, String, File[]>
@@ -108,6 +255,9 @@ public class WorldChooserActivity extends ListActivity
 
 		private final List<File> found = new ArrayList<File>();
 
+		private final WorldScanner scanner = new WorldScanner( new File(
+				getFilesDir(), "scan.idx" ) );
+
 		@Override
 		protected void onPreExecute()
 		{
@@ -116,39 +266,52 @@ public class WorldChooserActivity extends ListActivity
 							"Searching for worlds", "" );
 			dialog.setIndeterminate( true );
 			dialog.setCancelable( true );
+			dialog.setOnCancelListener( new DialogInterface.OnCancelListener(){
+				@Override
+				public void onCancel( final DialogInterface d )
+				{
+					scanner.cancel();
+				}
+			} );
 			dialog.show();
 		}
 
 		@Override
 		protected File[] doInBackground( final Void... params )
 		{
-			final Stack<File> dirs = new Stack<File>();
-			dirs.add( Environment.getExternalStorageDirectory() );
-
-			while( !dirs.isEmpty() && !isCancelled() )
+			try
 			{
-				final File dir = dirs.pop();
-
-				publishProgress( dir.getAbsolutePath() );
-
-				if( isWorld( dir ) )
-				{
-					found.add( dir );
-					publishProgress( "Found " + dir.getName() );
-				}
-				else
-				{
-					final File[] subDirs = dir.listFiles( dirFilter );
-					Arrays.sort( subDirs );
+				scanner.scan( Environment.getExternalStorageDirectory(),
+						new WorldScanner.Listener(){
+							@Override
+							public void directory( final File dir )
+							{
+								if( isCancelled() )
+									scanner.cancel();
+								else
+									publishProgress( dir.getAbsolutePath() );
+							}
 
-					for( final File subDir : subDirs )
-					{
-						dirs.add( subDir );
-					}
-				}
+							@Override
+							public void found( final File world )
+							{
+								synchronized( found )
+								{
+									found.add( world );
+								}
+								publishProgress( "Found " + world.getName() );
+							}
+						} );
+			}
+			catch( final InterruptedException e )
+			{
+				// fine, we'll go with what we've got
 			}
 
-			return found.toArray( new File[found.size()] );
+			synchronized( found )
+			{
+				return found.toArray( new File[found.size()] );
+			}
 		}
 
 		@Override
@@ -158,7 +321,11 @@ public class WorldChooserActivity extends ListActivity
 			{
 				Toast.makeText( WorldChooserActivity.this, values[ 0 ],
 						Toast.LENGTH_SHORT ).show();
-				worlds = found.toArray( new File[found.size()] );
+				synchronized( found )
+				{
+					worlds = found.toArray( new File[found.size()] );
+				}
+				Arrays.sort( worlds );
 				updateWorldList();
 			}
 			else
@@ -171,18 +338,9 @@ public class WorldChooserActivity extends ListActivity
 		protected void onPostExecute( final File[] result )
 		{
 			dialog.hide();
-		}
-	}
 
-	private static boolean isWorld( final File dir )
-	{
-		for( final File f : dir.listFiles() )
-		{
-			if( f.getName().equals( "level.dat" ) )
-			{
-				return true;
-			}
+			// summarise what we found in one go, now we've stopped finding
+			loadInfo();
 		}
-		return false;
 	}
 }
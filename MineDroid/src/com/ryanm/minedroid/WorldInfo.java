@@ -0,0 +1,399 @@
+package com.ryanm.minedroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.ryanm.droid.rugl.Game;
+import com.ryanm.droid.rugl.util.geom.Vector3f;
+import com.ryanm.minedroid.chunk.SurfaceTile;
+import com.ryanm.minedroid.nbt.Tag;
+
+/**
+ * A summary of a world for the chooser list: its name, when it was last
+ * played, where the player is, how big it is and a little map of the area
+ * around the player. Working this out means reading level.dat and sampling
+ * the surrounding regions, so the result is cached alongside the world and
+ * only rebuilt when level.dat or the region files change
+ * 
+ * @author ryanm
+ */
+public class WorldInfo
+{
+	/**
+	 * Edge length of the thumbnail, in pixels
+	 */
+	public static final int THUMBNAIL_SIZE = 64;
+
+	/**
+	 * Blocks per thumbnail pixel
+	 */
+	private static final int THUMBNAIL_SCALE = 16;
+
+	/**
+	 * Where the cached summary lives, relative to the world directory
+	 */
+	private static final String CACHE_FILE = "minedroid/info";
+
+	/**
+	 * Bump this if the format changes
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The world directory
+	 */
+	public final File dir;
+
+	/**
+	 * The name the world was given
+	 */
+	public String name;
+
+	/**
+	 * When the world was last played, in milliseconds since the epoch
+	 */
+	public long lastPlayed;
+
+	/**
+	 * Where the player is
+	 */
+	public final Vector3f position = new Vector3f();
+
+	/**
+	 * The number of region files
+	 */
+	public int regionCount;
+
+	/**
+	 * The size of all the region files, in bytes
+	 */
+	public long regionBytes;
+
+	/**
+	 * A top-down map of the area around the player, as
+	 * {@link #THUMBNAIL_SIZE} rows of 0xAARRGGBB pixels, or <code>null</code>
+	 * if there isn't one
+	 */
+	public int[] thumbnail;
+
+	/**
+	 * Modification times of level.dat and the newest region file when this
+	 * was built
+	 */
+	private long levelModified, regionsModified;
+
+	private WorldInfo( File dir )
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Gets the cached summary of a world, whether or not it is still
+	 * accurate
+	 * 
+	 * @param dir
+	 *           the world directory
+	 * @return the summary, or <code>null</code> if it hasn't been cached
+	 */
+	public static WorldInfo readCached( File dir )
+	{
+		final File cache = new File( dir, CACHE_FILE );
+		if( !cache.exists() )
+			return null;
+
+		final WorldInfo wi = new WorldInfo( dir );
+		return wi.read( cache ) ? wi : null;
+	}
+
+	/**
+	 * Gets an up-to-date summary of a world, from the cache if possible.
+	 * This can be slow, so keep it off the gui thread
+	 * 
+	 * @param dir
+	 *           the world directory
+	 * @return the summary
+	 * @throws IOException
+	 *            if level.dat can't be read
+	 */
+	public static WorldInfo load( File dir ) throws IOException
+	{
+		WorldInfo wi = readCached( dir );
+		if( wi != null && wi.isCurrent() )
+			return wi;
+
+		wi = new WorldInfo( dir );
+		wi.build();
+
+		try
+		{
+			wi.write( new File( dir, CACHE_FILE ) );
+		}
+		catch( final IOException e )
+		{
+			// no matter, we'll just have to build it again next time
+			Log.w( Game.RUGL_TAG, "Could not cache info of " + dir, e );
+		}
+
+		return wi;
+	}
+
+	/**
+	 * @return <code>true</code> if neither level.dat nor the region files
+	 *         have changed since this summary was built
+	 */
+	public boolean isCurrent()
+	{
+		return new File( dir, "level.dat" ).lastModified() == levelModified
+				&& newestRegion() == regionsModified;
+	}
+
+	/**
+	 * @return <code>true</code> if level.dat hasn't changed since this summary
+	 *         was built, so {@link #position} can be trusted
+	 */
+	public boolean isPositionCurrent()
+	{
+		return new File( dir, "level.dat" ).lastModified() == levelModified;
+	}
+
+	/**
+	 * @return A line of text describing the world
+	 */
+	public String describe()
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		if( lastPlayed > 0 )
+		{
+			final long days =
+					( System.currentTimeMillis() - lastPlayed )
+							/ ( 24 * 60 * 60 * 1000L );
+			sb.append( days == 0 ? "Played today"
+					: days == 1 ? "Played yesterday" : "Played " + days + " days ago" );
+			sb.append( ", " );
+		}
+
+		sb.append( regionCount ).append(
+				regionCount == 1 ? " region, " : " regions, " );
+		sb.append( ( regionBytes + 512 * 1024 ) / ( 1024 * 1024 ) ).append( "MB" );
+
+		return sb.toString();
+	}
+
+	private File[] regionFiles()
+	{
+		final File[] files = new File( dir, "region" ).listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	private long newestRegion()
+	{
+		long newest = 0;
+		for( final File f : regionFiles() )
+			if( f.getName().endsWith( ".mcr" ) )
+				newest = Math.max( newest, f.lastModified() );
+		return newest;
+	}
+
+	private void build() throws IOException
+	{
+		final File level = new File( dir, "level.dat" );
+		levelModified = level.lastModified();
+
+		final FileInputStream is = new FileInputStream( level );
+		final Tag root;
+		try
+		{
+			root = Tag.readFrom( is, true );
+		}
+		finally
+		{
+			is.close();
+		}
+
+		// the name and time are nice to have, but we can't go on without a
+		// position
+		final Object n = value( root, "LevelName" );
+		name = n instanceof String ? ( String ) n : dir.getName();
+
+		final Object lp = value( root, "LastPlayed" );
+		lastPlayed = lp instanceof Long ? ( ( Long ) lp ).longValue() : 0;
+
+		final Tag player = root.findTagByName( "Player" );
+		final Object pos = value( player != null ? player : root, "Pos" );
+		if( !( pos instanceof Tag[] ) || ( ( Tag[] ) pos ).length < 3 )
+			throw new IOException( "No player position in " + level );
+
+		final float[] p = new float[3];
+		for( int i = 0; i < p.length; i++ )
+		{
+			final Object v = ( ( Tag[] ) pos )[ i ].getValue();
+			if( !( v instanceof Double ) )
+				throw new IOException( "Unexpected player position in " + level );
+			p[ i ] = ( ( Double ) v ).floatValue();
+		}
+		position.set( p[ 0 ], p[ 1 ], p[ 2 ] );
+
+		regionCount = 0;
+		regionBytes = 0;
+		regionsModified = 0;
+		for( final File f : regionFiles() )
+			if( f.getName().endsWith( ".mcr" ) )
+			{
+				regionCount++;
+				regionBytes += f.length();
+				regionsModified = Math.max( regionsModified, f.lastModified() );
+			}
+
+		thumbnail = regionCount > 0 ? drawThumbnail() : null;
+	}
+
+	/**
+	 * @param parent
+	 * @param name
+	 * @return The value of the named tag, or <code>null</code> if there is no
+	 *         such tag
+	 */
+	private static Object value( Tag parent, String name )
+	{
+		final Tag t = parent.findTagByName( name );
+		return t == null ? null : t.getValue();
+	}
+
+	/**
+	 * Draws the surface of the area centred on the player, shading by height
+	 * 
+	 * @return the thumbnail pixels
+	 */
+	private int[] drawThumbnail()
+	{
+		final int[] pixels = new int[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+		final int span = THUMBNAIL_SIZE * THUMBNAIL_SCALE;
+		final int x0 = ( int ) Math.floor( position.x ) - span / 2;
+		final int z0 = ( int ) Math.floor( position.z ) - span / 2;
+
+		// the area straddles up to nine regions
+		final Map<Long, SurfaceTile> tiles = new HashMap<Long, SurfaceTile>();
+
+		for( int pz = 0; pz < THUMBNAIL_SIZE; pz++ )
+			for( int px = 0; px < THUMBNAIL_SIZE; px++ )
+			{
+				final int x = x0 + px * THUMBNAIL_SCALE;
+				final int z = z0 + pz * THUMBNAIL_SCALE;
+				final int rx = x >> 9, rz = z >> 9;
+
+				final Long key = Long.valueOf( rx & 0xffffffffL | ( long ) rz << 32 );
+				SurfaceTile tile = tiles.get( key );
+				if( tile == null )
+				{
+					tile = SurfaceTile.load( dir, rx, rz );
+					tiles.put( key, tile );
+				}
+
+				final int sx = ( x & 511 ) / SurfaceTile.SPACING;
+				final int sz = ( z & 511 ) / SurfaceTile.SPACING;
+				final int h = tile.height( sx, sz );
+
+				if( h >= 0 )
+				{
+					final int rgb = SurfaceTile.colour( tile.type( sx, sz ) );
+					final float shade = 0.5f + 0.5f * h / 128;
+					pixels[ pz * THUMBNAIL_SIZE + px ] =
+							0xff000000 | ( int ) ( ( rgb >> 16 & 0xff ) * shade ) << 16
+									| ( int ) ( ( rgb >> 8 & 0xff ) * shade ) << 8
+									| ( int ) ( ( rgb & 0xff ) * shade );
+				}
+			}
+
+		return pixels;
+	}
+
+	private boolean read( File cache )
+	{
+		DataInputStream is = null;
+		try
+		{
+			is =
+					new DataInputStream( new BufferedInputStream( new FileInputStream(
+							cache ) ) );
+
+			if( is.readInt() != VERSION )
+				return false;
+
+			levelModified = is.readLong();
+			regionsModified = is.readLong();
+			name = is.readUTF();
+			lastPlayed = is.readLong();
+			position.set( is.readFloat(), is.readFloat(), is.readFloat() );
+			regionCount = is.readInt();
+			regionBytes = is.readLong();
+
+			if( is.readBoolean() )
+			{
+				thumbnail = new int[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+				for( int i = 0; i < thumbnail.length; i++ )
+					thumbnail[ i ] = is.readInt();
+			}
+
+			return true;
+		}
+		catch( final IOException e )
+		{
+			Log.w( Game.RUGL_TAG, "Could not read " + cache, e );
+			return false;
+		}
+		finally
+		{
+			if( is != null )
+				try
+				{
+					is.close();
+				}
+				catch( final IOException e )
+				{
+					// whatever
+				}
+		}
+	}
+
+	private void write( File cache ) throws IOException
+	{
+		cache.getParentFile().mkdirs();
+
+		final DataOutputStream os =
+				new DataOutputStream( new BufferedOutputStream(
+						new FileOutputStream( cache ) ) );
+		try
+		{
+			os.writeInt( VERSION );
+			os.writeLong( levelModified );
+			os.writeLong( regionsModified );
+			os.writeUTF( name );
+			os.writeLong( lastPlayed );
+			os.writeFloat( position.x );
+			os.writeFloat( position.y );
+			os.writeFloat( position.z );
+			os.writeInt( regionCount );
+			os.writeLong( regionBytes );
+
+			os.writeBoolean( thumbnail != null );
+			if( thumbnail != null )
+				for( int i = 0; i < thumbnail.length; i++ )
+					os.writeInt( thumbnail[ i ] );
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+}
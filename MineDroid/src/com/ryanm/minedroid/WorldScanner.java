@@ -0,0 +1,347 @@
+package com.ryanm.minedroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.ryanm.droid.rugl.Game;
+
+/**
+ * Searches a directory tree for minecraft worlds, which are directories that
+ * contain a level.dat. A few directories are listed at once on a small pool
+ * of threads, and well-known media directories are skipped entirely. The
+ * sub-directories of everything visited are remembered in an index file
+ * along with the directory's modification time, so on later scans only
+ * directories that have changed need to be listed again
+ * 
+ * @author ryanm
+ */
+public class WorldScanner
+{
+	/**
+	 * Receives scan results. Methods are called from the scanning threads
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called as each directory is visited
+		 * 
+		 * @param dir
+		 */
+		public void directory( File dir );
+
+		/**
+		 * Called when a world is found
+		 * 
+		 * @param world
+		 *           the world directory
+		 */
+		public void found( File world );
+	}
+
+	/**
+	 * Directories listed at once
+	 */
+	private static final int THREADS = 4;
+
+	/**
+	 * How far down the tree we look, in case of link loops
+	 */
+	private static final int MAX_DEPTH = 12;
+
+	/**
+	 * Bump this if the index format changes
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Lower-case names of directories that are full of media files and never
+	 * of worlds
+	 */
+	private static final Set<String> SKIPPED = new HashSet<String>();
+	static
+	{
+		for( final String s : new String[] { "dcim", "music", "movies",
+				"pictures", "podcasts", "ringtones", "alarms", "notifications",
+				"lost.dir" } )
+			SKIPPED.add( s );
+	}
+
+	private final File indexFile;
+
+	/**
+	 * Sub-directory names and modification times from the last scan
+	 */
+	private Map<String, Entry> previous = new HashMap<String, Entry>();
+
+	/**
+	 * What we find on this scan
+	 */
+	private final Map<String, Entry> current =
+			new ConcurrentHashMap<String, Entry>();
+
+	private Listener listener;
+
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param indexFile
+	 *           where to keep the index of visited directories
+	 */
+	public WorldScanner( File indexFile )
+	{
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Scans for worlds, returning when the scan is complete or cancelled
+	 * 
+	 * @param root
+	 *           where to start looking
+	 * @param l
+	 * @throws InterruptedException
+	 */
+	public void scan( File root, Listener l ) throws InterruptedException
+	{
+		listener = l;
+		cancelled = false;
+		previous = readIndex();
+		current.clear();
+
+		final ExecutorService pool = Executors.newFixedThreadPool( THREADS );
+
+		submit( pool, root, 0 );
+
+		synchronized( outstanding )
+		{
+			while( outstanding.get() > 0 && !cancelled )
+				outstanding.wait();
+		}
+
+		// tasks that are still running see the cancellation and stop
+		// submitting more. Those that never started won't count
+		// themselves off
+		outstanding.addAndGet( -pool.shutdownNow().size() );
+
+		if( !cancelled )
+			writeIndex();
+	}
+
+	/**
+	 * Stops the scan
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+
+		synchronized( outstanding )
+		{
+			outstanding.notifyAll();
+		}
+	}
+
+	private void submit( final ExecutorService pool, final File dir,
+			final int depth )
+	{
+		if( cancelled )
+			return;
+
+		outstanding.incrementAndGet();
+
+		try
+		{
+			pool.submit( new Runnable(){
+				@Override
+				public void run()
+				{
+					try
+					{
+						if( !cancelled )
+							visit( pool, dir, depth );
+					}
+					catch( final Exception e )
+					{
+						Log.w( Game.RUGL_TAG, "Problem scanning " + dir, e );
+					}
+					finally
+					{
+						finished();
+					}
+				}
+			} );
+		}
+		catch( final RejectedExecutionException e )
+		{
+			// cancelled and shut down between our check and now
+			finished();
+		}
+	}
+
+	private void finished()
+	{
+		if( outstanding.decrementAndGet() == 0 )
+			synchronized( outstanding )
+			{
+				outstanding.notifyAll();
+			}
+	}
+
+	private void visit( final ExecutorService pool, final File dir,
+			final int depth )
+	{
+		listener.directory( dir );
+
+		if( new File( dir, "level.dat" ).exists() )
+		{
+			listener.found( dir );
+			return;
+		}
+
+		if( depth >= MAX_DEPTH )
+			return;
+
+		final String path = dir.getAbsolutePath();
+		final long modified = dir.lastModified();
+
+		Entry e = previous.get( path );
+		if( e == null || e.modified != modified )
+		{
+			// changed since last time, we have to look
+			final File[] files = dir.listFiles();
+			if( files == null )
+				return;
+
+			int n = 0;
+			final String[] names = new String[files.length];
+			for( final File f : files )
+				if( f.isDirectory() && !skipped( f.getName() ) )
+					names[ n++ ] = f.getName();
+
+			e = new Entry( modified, new String[n] );
+			System.arraycopy( names, 0, e.children, 0, n );
+		}
+
+		current.put( path, e );
+
+		for( final String child : e.children )
+			submit( pool, new File( dir, child ), depth + 1 );
+	}
+
+	private static boolean skipped( final String name )
+	{
+		return name.startsWith( "." ) || SKIPPED.contains( name.toLowerCase() );
+	}
+
+	private Map<String, Entry> readIndex()
+	{
+		final Map<String, Entry> index = new HashMap<String, Entry>();
+
+		if( !indexFile.exists() )
+			return index;
+
+		DataInputStream is = null;
+		try
+		{
+			is =
+					new DataInputStream( new BufferedInputStream( new FileInputStream(
+							indexFile ) ) );
+
+			if( is.readInt() != VERSION )
+				return index;
+
+			final int count = is.readInt();
+			for( int i = 0; i < count; i++ )
+			{
+				final String path = is.readUTF();
+				final long modified = is.readLong();
+				final String[] children = new String[is.readInt()];
+				for( int j = 0; j < children.length; j++ )
+					children[ j ] = is.readUTF();
+
+				index.put( path, new Entry( modified, children ) );
+			}
+		}
+		catch( final IOException e )
+		{
+			Log.w( Game.RUGL_TAG, "Could not read scan index", e );
+			index.clear();
+		}
+		finally
+		{
+			if( is != null )
+				try
+				{
+					is.close();
+				}
+				catch( final IOException e )
+				{
+					// whatever
+				}
+		}
+
+		return index;
+	}
+
+	private void writeIndex()
+	{
+		try
+		{
+			final DataOutputStream os =
+					new DataOutputStream( new BufferedOutputStream(
+							new FileOutputStream( indexFile ) ) );
+			try
+			{
+				os.writeInt( VERSION );
+				os.writeInt( current.size() );
+				for( final Map.Entry<String, Entry> me : current.entrySet() )
+				{
+					os.writeUTF( me.getKey() );
+					os.writeLong( me.getValue().modified );
+					os.writeInt( me.getValue().children.length );
+					for( final String child : me.getValue().children )
+						os.writeUTF( child );
+				}
+			}
+			finally
+			{
+				os.close();
+			}
+		}
+		catch( final IOException e )
+		{
+			// no matter, we'll just have to look harder next time
+			Log.w( Game.RUGL_TAG, "Could not write scan index", e );
+		}
+	}
+
+	private static class Entry
+	{
+		private final long modified;
+
+		private final String[] children;
+
+		private Entry( final long modified, final String[] children )
+		{
+			this.modified = modified;
+			this.children = children;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.ryanm.minedroid.chunk;
+
+import java.util.ArrayList;
+
+import com.ryanm.minedroid.World;
+
+/**
+ * Changes lots of blocks at once. Blocks are written straight into the
+ * chunks, and the relighting and remeshing that
+ * {@link Chunk#setBlockTypeForPosition(float, float, float, byte)} does for
+ * every block is put off until {@link #finish()}, when each affected
+ * chunklet is remeshed once and all the changes are relit in one batch
+ * 
+ * @author ryanm
+ */
+public class BulkEdit
+{
+	/**
+	 * Edits touching no more than this many chunklets are remeshed
+	 * immediately, like single block changes. Bigger ones are left to the
+	 * geometry generator thread
+	 */
+	private static final int SYNCHRONOUS_REMESH = 6;
+
+	private static int passes = 0;
+
+	private final World world;
+
+	private final int pass = ++passes;
+
+	private final EditLog log;
+
+	/**
+	 * x, y, z triples of changed blocks
+	 */
+	private int[] changed = new int[48];
+
+	private int changedCount = 0;
+
+	private final ArrayList<Chunklet> touched = new ArrayList<Chunklet>();
+
+	private final Chunklet[] affected = new Chunklet[4];
+
+	/**
+	 * The most recently used chunk
+	 */
+	private Chunk cached;
+
+	private boolean finished = false;
+
+	/**
+	 * @param world
+	 * @param record
+	 *           <code>true</code> to keep an {@link EditLog} of the changes
+	 */
+	public BulkEdit( World world, boolean record )
+	{
+		this.world = world;
+		log = record ? new EditLog() : null;
+	}
+
+	/**
+	 * Changes a block
+	 * 
+	 * @param x
+	 *           block coordinate
+	 * @param y
+	 *           block coordinate
+	 * @param z
+	 *           block coordinate
+	 * @param blockType
+	 * @return <code>true</code> if the block was changed,
+	 *         <code>false</code> if it already had that type or is not loaded
+	 */
+	public boolean set( int x, int y, int z, byte blockType )
+	{
+		if( finished )
+			throw new IllegalStateException( "Edit already finished" );
+
+		if( y < 0 || y >= 128 )
+			return false;
+
+		final int cx = x >> 4, cz = z >> 4;
+		if( cached == null || cached.chunkX != cx || cached.chunkZ != cz )
+			cached = world.getChunk( cx, cz );
+
+		if( cached == null )
+			return false;
+
+		final int bx = x & 15, bz = z & 15;
+		final byte old = cached.writeBlock( bx, y, bz, blockType );
+		if( old == blockType )
+			return false;
+
+		if( log != null )
+			log.add( x, y, z, old, blockType );
+
+		if( changedCount * 3 == changed.length )
+		{
+			final int[] nc = new int[changed.length * 2];
+			System.arraycopy( changed, 0, nc, 0, changed.length );
+			changed = nc;
+		}
+		changed[ changedCount * 3 ] = x;
+		changed[ changedCount * 3 + 1 ] = y;
+		changed[ changedCount * 3 + 2 ] = z;
+		changedCount++;
+
+		final int n = cached.affectedChunklets( bx, y, bz, affected );
+		for( int i = 0; i < n; i++ )
+			if( affected[ i ].editPass != pass )
+			{
+				affected[ i ].editPass = pass;
+				touched.add( affected[ i ] );
+			}
+
+		return true;
+	}
+
+	/**
+	 * Relights and remeshes everything that was changed. The edit cannot be
+	 * used after this
+	 * 
+	 * @return The changes made, or <code>null</code> if they weren't recorded
+	 */
+	public EditLog finish()
+	{
+		if( !finished )
+		{
+			finished = true;
+
+			world.lighting.blocksChanged( changed, changedCount );
+
+			final boolean synchronous = touched.size() <= SYNCHRONOUS_REMESH;
+			for( int i = 0; i < touched.size(); i++ )
+			{
+				final Chunklet c = touched.get( i );
+				c.geomDirty();
+				if( synchronous )
+					c.generateGeometry( true );
+			}
+
+			touched.clear();
+			cached = null;
+		}
+
+		return log;
+	}
+}
@@ -3,6 +3,7 @@ package com.ryanm.minedroid.chunk;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.ryanm.minedroid.BlockFactory;
 import com.ryanm.minedroid.World;
 import com.ryanm.minedroid.nbt.Tag;
 
@@ -24,24 +25,32 @@ public class Chunk
 	public int chunkZ;
 
 	/**
-	 * Block data
+	 * Block and light data, in 16-block-high sections
 	 */
-	public final byte[] blockData;
+	final Section[] sections;
 
 	/**
-	 * Skylight data, remember it's only 4 bits per block
+	 * For each column, the lowest y at which the sky is fully visible - i.e.:
+	 * one above the highest block that stops sky light. Indexed as
+	 * <code>z * 16 + x</code>
 	 */
-	public final byte[] skylight;
+	private final byte[] heightMap;
 
 	/**
-	 * Blocklight data, remember it's only 4 bits per block
+	 * The parent world
 	 */
-	public final byte[] blocklight;
+	public final World world;
 
 	/**
-	 * The parent world
+	 * How far either side of the LOD distance a chunk has to be before it
+	 * switches detail level, in blocks
 	 */
-	public final World world;
+	private static final float LOD_HYSTERESIS = 8;
+
+	/**
+	 * <code>true</code> if this chunk should be drawn with simplified geometry
+	 */
+	private boolean lod = false;
 
 	/**
 	 * The child chunklets
@@ -60,9 +69,26 @@ public class Chunk
 
 		chunkX = ( ( Integer ) ct.findTagByName( "xPos" ).getValue() ).intValue();
 		chunkZ = ( ( Integer ) ct.findTagByName( "zPos" ).getValue() ).intValue();
-		blockData = ( byte[] ) ct.findTagByName( "Blocks" ).getValue();
-		skylight = ( byte[] ) ct.findTagByName( "SkyLight" ).getValue();
-		blocklight = ( byte[] ) ct.findTagByName( "BlockLight" ).getValue();
+		final byte[] blockData = ( byte[] ) ct.findTagByName( "Blocks" ).getValue();
+		final byte[] skylight = ( byte[] ) ct.findTagByName( "SkyLight" ).getValue();
+		final byte[] blocklight =
+				( byte[] ) ct.findTagByName( "BlockLight" ).getValue();
+
+		sections = new Section[8];
+		for( int i = 0; i < sections.length; i++ )
+			sections[ i ] = new Section( blockData, skylight, blocklight, i );
+
+		final Tag hm = ct.findTagByName( "HeightMap" );
+		if( hm != null && hm.getValue() instanceof byte[]
+				&& ( ( byte[] ) hm.getValue() ).length == 256 )
+			heightMap = ( byte[] ) hm.getValue();
+		else
+		{
+			heightMap = new byte[256];
+			for( int bx = 0; bx < 16; bx++ )
+				for( int bz = 0; bz < 16; bz++ )
+					heightMap[ bz * 16 + bx ] = ( byte ) findHeight( bx, 127, bz );
+		}
 
 		chunklets = new Chunklet[8];
 		for( int i = 0; i < chunklets.length; i++ )
@@ -104,7 +130,45 @@ public class Chunk
 		else if( by < 0 || by >= 128 )
 			return 0;
 
-		return blockData[ by + bz * 128 + bx * 2048 ];
+		return sections[ by >> 4 ].blockType( sectionIndex( bx, by, bz ) );
+	}
+
+	/**
+	 * Visits a run of blocks in one column of this chunk
+	 * 
+	 * @param bx
+	 *           in range 0-15
+	 * @param bz
+	 *           in range 0-15
+	 * @param y0
+	 *           lowest y to visit, at least 0
+	 * @param y1
+	 *           highest y to visit, at most 127
+	 * @param v
+	 * @return <code>false</code> if the visitor asked to stop
+	 */
+	public boolean visitColumn( int bx, int bz, int y0, int y1,
+			World.BlockVisitor v )
+	{
+		final int x = chunkX * 16 + bx, z = chunkZ * 16 + bz;
+
+		for( int y = y0; y <= y1; y++ )
+			if( !v.visit( x, y, z,
+					sections[ y >> 4 ].blockType( sectionIndex( bx, y, bz ) ) ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param bx
+	 * @param by
+	 * @param bz
+	 * @return index of the block within its {@link Section}
+	 */
+	static int sectionIndex( int bx, int by, int bz )
+	{
+		return ( by & 15 ) | bz << 4 | bx << 8;
 	}
 
 	private void setBlockType( final int bx, final int by, final int bz,
@@ -136,112 +200,144 @@ public class Chunk
 		}
 		else if( by < 0 || by >= 128 )
 			return;
-		else
+		else if( writeBlock( bx, by, bz, blockType ) != blockType )
 		{
-			final int index = by + bz * 128 + bx * 2048;
+			world.lighting.blockChanged( chunkX * 16 + bx, by, chunkZ * 16 + bz );
 
-			blockData[ index ] = blockType;
-
-			if( blockType == 0 )
+			final Chunklet[] affected = new Chunklet[4];
+			final int n = affectedChunklets( bx, by, bz, affected );
+			for( int i = 0; i < n; i++ )
 			{
-				// removed a block, lighting propagation needed
-				byte ol =
-						( byte ) Math.max( skyLight( bx, by, bz ),
-								blockLight( bx, by, bz ) );
-
-				byte nl =
-						( byte ) Math.max( skyLight( bx + 1, by, bz ),
-								blockLight( bx + 1, by, bz ) );
-				nl =
-						( byte ) Math.max(
-								nl,
-								Math.max( skyLight( bx, by + 1, bz ),
-										blockLight( bx, by + 1, bz ) ) );
-				nl =
-						( byte ) Math.max(
-								nl,
-								Math.max( skyLight( bx, by, bz + 1 ),
-										blockLight( bx, by, bz + 1 ) ) );
-				nl =
-						( byte ) Math.max(
-								nl,
-								Math.max( skyLight( bx - 1, by, bz ),
-										blockLight( bx - 1, by, bz ) ) );
-				nl =
-						( byte ) Math.max(
-								nl,
-								Math.max( skyLight( bx, by - 1, bz ),
-										blockLight( bx, by - 1, bz ) ) );
-				nl =
-						( byte ) Math.max(
-								nl,
-								Math.max( skyLight( bx, by, bz - 1 ),
-										blockLight( bx, by, bz - 1 ) ) );
-
-				nl--;
-				if( nl > ol )
-				{
-					// set
-					int hi = index / 2;
-					boolean odd = ( index & 1 ) != 0;
-					if( odd )
-					{
-						blocklight[ hi ] &= 0xf;
-						blocklight[ hi ] |= nl << 4;
-					}
-					else
-					{
-						blocklight[ hi ] &= 0xf0;
-						blocklight[ hi ] |= nl;
-					}
-				}
+				affected[ i ].geomDirty();
+				affected[ i ].generateGeometry( true );
 			}
+		}
+	}
 
-			int cyi = by / 16;
-			chunklets[ cyi ].geomDirty();
-			chunklets[ cyi ].generateGeometry( true );
+	/**
+	 * Changes a block and keeps the height map consistent, but doesn't
+	 * relight or remesh anything. Queue the block with the
+	 * {@link LightEngine} afterwards
+	 * 
+	 * @param bx
+	 *           in range 0-15
+	 * @param by
+	 *           in range 0-127
+	 * @param bz
+	 *           in range 0-15
+	 * @param blockType
+	 * @return the previous type of the block
+	 */
+	byte writeBlock( final int bx, final int by, final int bz,
+			final byte blockType )
+	{
+		final Section section = sections[ by >> 4 ];
+		final int index = sectionIndex( bx, by, bz );
 
-			// neighbours also dirty?
-			if( bx == 0 )
-			{
-				Chunk north = world.getChunk( chunkX - 1, chunkZ );
-				north.chunklets[ cyi ].geomDirty();
-				north.chunklets[ cyi ].generateGeometry( true );
-			}
-			else if( bx == 15 )
-			{
-				Chunk south = world.getChunk( chunkX + 1, chunkZ );
-				south.chunklets[ cyi ].geomDirty();
-				south.chunklets[ cyi ].generateGeometry( true );
-			}
+		final byte old = section.blockType( index );
+		if( old == blockType )
+			return old;
 
-			if( bz == 0 )
-			{
-				Chunk east = world.getChunk( chunkX, chunkZ - 1 );
-				east.chunklets[ cyi ].geomDirty();
-				east.chunklets[ cyi ].generateGeometry( true );
-			}
-			else if( bz == 15 )
-			{
-				Chunk west = world.getChunk( chunkX, chunkZ + 1 );
-				west.chunklets[ cyi ].geomDirty();
-				west.chunklets[ cyi ].generateGeometry( true );
-			}
+		section.setBlockType( index, blockType );
 
-			if( by % 16 == 0 && cyi >= 1 )
-			{
-				Chunklet below = chunklets[ cyi - 1 ];
-				below.geomDirty();
-				below.generateGeometry( true );
-			}
+		final int oldHeight = height( bx, bz );
+		if( BlockFactory.blocksSkyLight( blockType ) )
+		{
+			if( by >= oldHeight )
+				heightMap[ bz * 16 + bx ] = ( byte ) ( by + 1 );
+		}
+		else if( by == oldHeight - 1 )
+			// uncovered the column, everything down to the next
+			// obstruction is now under open sky. The light engine lights
+			// it, only that thread writes light
+			heightMap[ bz * 16 + bx ] = ( byte ) findHeight( bx, by - 1, bz );
 
-			if( by % 16 == 15 && cyi < 6 )
-			{
-				Chunklet above = chunklets[ cyi + 1 ];
-				above.geomDirty();
-				above.generateGeometry( true );
-			}
+		return old;
+	}
+
+	/**
+	 * Finds the chunklets whose geometry depends on a block: the one that
+	 * contains it, and any that it borders
+	 * 
+	 * @param bx
+	 *           in range 0-15
+	 * @param by
+	 *           in range 0-127
+	 * @param bz
+	 *           in range 0-15
+	 * @param dest
+	 *           at least 4 long
+	 * @return the number of chunklets put into dest
+	 */
+	int affectedChunklets( final int bx, final int by, final int bz,
+			final Chunklet[] dest )
+	{
+		final int cyi = by / 16;
+		int n = 0;
+
+		dest[ n++ ] = chunklets[ cyi ];
+
+		Chunk neighbour = null;
+		if( bx == 0 )
+			neighbour = world.getChunk( chunkX - 1, chunkZ );
+		else if( bx == 15 )
+			neighbour = world.getChunk( chunkX + 1, chunkZ );
+		if( neighbour != null )
+			dest[ n++ ] = neighbour.chunklets[ cyi ];
+
+		neighbour = null;
+		if( bz == 0 )
+			neighbour = world.getChunk( chunkX, chunkZ - 1 );
+		else if( bz == 15 )
+			neighbour = world.getChunk( chunkX, chunkZ + 1 );
+		if( neighbour != null )
+			dest[ n++ ] = neighbour.chunklets[ cyi ];
+
+		if( by % 16 == 0 && cyi >= 1 )
+			dest[ n++ ] = chunklets[ cyi - 1 ];
+		else if( by % 16 == 15 && cyi < chunklets.length - 1 )
+			dest[ n++ ] = chunklets[ cyi + 1 ];
+
+		return n;
+	}
+
+	/**
+	 * @param bx
+	 *           in range 0-15
+	 * @param bz
+	 *           in range 0-15
+	 * @return The lowest y at which the sky is fully visible in that column,
+	 *         i.e.: one above the highest block that stops sky light, or 0 if
+	 *         nothing does
+	 */
+	public int height( int bx, int bz )
+	{
+		return heightMap[ bz * 16 + bx ] & 0xff;
+	}
+
+	/**
+	 * Scans down a column for the highest block that stops sky light
+	 * 
+	 * @param bx
+	 * @param top
+	 *           where to start looking
+	 * @param bz
+	 * @return one above the found block, or 0
+	 */
+	private int findHeight( int bx, int top, int bz )
+	{
+		for( int sy = top >> 4; sy >= 0; sy-- )
+		{
+			final Section s = sections[ sy ];
+			final int start = Math.min( top, sy * 16 + s.maxHeight() );
+
+			for( int y = start; y >= sy * 16; y-- )
+				if( BlockFactory.blocksSkyLight( s.blockType( sectionIndex( bx, y,
+						bz ) ) ) )
+					return y + 1;
 		}
+
+		return 0;
 	}
 
 	/**
@@ -301,13 +397,7 @@ public class Chunk
 		else if( by < 0 || by >= 128 )
 			return 0;
 
-		int index = by + bz * 128 + bx * 2048;
-		int hi = index / 2;
-		boolean odd = ( index & 1 ) != 0;
-		if( odd )
-			return ( blocklight[ hi ] & 0xf0 ) >> 4;
-		else
-			return blocklight[ hi ] & 0xf;
+		return sections[ by >> 4 ].blockLight( sectionIndex( bx, by, bz ) );
 	}
 
 	/**
@@ -341,14 +431,66 @@ public class Chunk
 		else if( by < 0 || by >= 128 )
 			return 0;
 
-		int index = by + bz * 128 + bx * 2048;
-		int hi = index / 2;
-		boolean odd = ( index & 1 ) != 0;
+		return sections[ by >> 4 ].skyLight( sectionIndex( bx, by, bz ) );
+	}
 
-		if( odd )
-			return ( skylight[ hi ] & 0xf0 ) >> 4;
+	/**
+	 * @return An estimate of the heap used by this chunk's block and light
+	 *         data, in bytes
+	 */
+	public int memoryUsage()
+	{
+		int bytes = 0;
+		for( int i = 0; i < sections.length; i++ )
+			bytes += sections[ i ].memoryUsage();
+		return bytes;
+	}
+
+	/**
+	 * Chooses between full and simplified geometry according to the distance
+	 * from the eye. The switch happens a little way either side of the
+	 * threshold, so that chunks near it don't flip back and forth as the
+	 * player moves about
+	 * 
+	 * @param eyeX
+	 * @param eyeZ
+	 * @param distance
+	 *           The distance beyond which simplified geometry is used, or 0 to
+	 *           always use full detail
+	 */
+	public void selectDetail( float eyeX, float eyeZ, float distance )
+	{
+		if( distance <= 0 )
+		{
+			lod = false;
+			return;
+		}
+
+		final float dx = chunkX * 16 + 8 - eyeX;
+		final float dz = chunkZ * 16 + 8 - eyeZ;
+		final float d = dx * dx + dz * dz;
+
+		if( lod )
+		{
+			final float near = Math.max( 0, distance - LOD_HYSTERESIS );
+			if( d < near * near )
+				lod = false;
+		}
 		else
-			return skylight[ hi ] & 0xf;
+		{
+			final float far = distance + LOD_HYSTERESIS;
+			if( d > far * far )
+				lod = true;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if this chunk should be drawn with simplified
+	 *         geometry
+	 */
+	public boolean isLod()
+	{
+		return lod;
 	}
 
 	/**
@@ -0,0 +1,638 @@
+package com.ryanm.minedroid.chunk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import android.opengl.GLES10;
+import android.opengl.GLES11;
+import android.util.Log;
+
+import com.ryanm.droid.rugl.Game;
+import com.ryanm.droid.rugl.geom.ShapeBuilder;
+import com.ryanm.droid.rugl.gl.GLVersion;
+import com.ryanm.droid.rugl.gl.State;
+
+/**
+ * Chunklet geometry. Rather than baking light into the vertex colours, each
+ * vertex carries its sky light level, block light level and ambient
+ * occlusion, packed into a light word by the {@link GeometryGenerator}. The
+ * colours are worked out from those when the mesh is first drawn, and again
+ * only when the global sky brightness changes, so a day/night cycle doesn't
+ * need any remeshing.
+ * <p>
+ * Vertices are packed into 8 bytes plus 4 of colour, rather than the 24 of
+ * a float TexturedShape: positions are chunklet-local bytes in
+ * half-block units, and texture coordinates are bytes in units of half a
+ * terrain.png tile. The scaling and the chunklet translation are applied with
+ * the modelview and texture matrices at draw time. Meshes are made of quads,
+ * all triangulated the same way, so they share a single index buffer, and
+ * their vertex data is sub-allocated from a few large buffers by a
+ * {@link VBOPool}. Call
+ * {@link #begin(State)} before drawing meshes and {@link #end()} afterwards
+ * 
+ * @author ryanm
+ */
+public class ChunkMesh
+{
+	/**
+	 * Highest light value in a light word: light levels are held in quarter
+	 * steps so that smoothed light survives averaging
+	 */
+	public static final int MAX_LEVEL = 15 * 4;
+
+	/**
+	 * Highest ambient occlusion value in a light word, meaning no occlusion
+	 */
+	public static final int UNOCCLUDED = 3;
+
+	/**
+	 * Bytes per vertex of position and texture coordinate data
+	 */
+	static final int STRIDE = 8;
+
+	/**
+	 * Offset of texture coordinates in the packed vertex
+	 */
+	private static final int TEXCOORD_OFFSET = 4;
+
+	/**
+	 * Packed position units per block
+	 */
+	private static final float POSITION_SCALE = 2;
+
+	/**
+	 * Packed texture coordinate units per texture
+	 */
+	private static final float TEXCOORD_SCALE = 32;
+
+	/**
+	 * The most quads that a mesh can hold, limited by short indices
+	 */
+	public static final int MAX_QUADS = 65536 / 4;
+
+	/**
+	 * The triangle indices for {@link #MAX_QUADS} quads
+	 */
+	private static ShortBuffer quadIndices;
+
+	/**
+	 * Handle of the shared index buffer object, or 0 if it has not been
+	 * uploaded to the current context
+	 */
+	private static int quadIndexVBO = 0;
+
+	/**
+	 * Number of distinct sky brightness values
+	 */
+	private static final int SKY_STEPS = 32;
+
+	private static final float[] OCCLUSION = { 0.5f, 0.7f, 0.85f, 1 };
+
+	/**
+	 * Brightness for light levels, in quarter steps
+	 */
+	private static final float[] BRIGHTNESS = new float[MAX_LEVEL + 1];
+
+	static
+	{
+		for( int q = 0; q < BRIGHTNESS.length; q++ )
+			BRIGHTNESS[ q ] = ( float ) Math.pow( 0.8, 15 - q / 4f );
+	}
+
+	private static int skyStep = SKY_STEPS;
+
+	/**
+	 * Vertex colour intensity for every combination of sky light, block light
+	 * and occlusion at the current sky brightness. Indexed as
+	 * <code>( sky * 61 + block ) * 4 + occlusion</code>
+	 */
+	private static final byte[] shade =
+			new byte[( MAX_LEVEL + 1 ) * ( MAX_LEVEL + 1 ) * 4];
+
+	/**
+	 * Incremented when {@link #shade} changes
+	 */
+	private static int shadeVersion = 0;
+
+	static
+	{
+		buildShade();
+	}
+
+	/**
+	 * Chunklet origin
+	 */
+	private final int x, y, z;
+
+	private final int vertexCount;
+
+	private final int[] lightWords;
+
+	/**
+	 * Packed positions and texture coordinates. This is kept after uploading
+	 * so that the {@link VBOPool} can move the mesh around
+	 */
+	private final ByteBuffer vertices;
+
+	private final ByteBuffer colours;
+
+	/**
+	 * The {@link #shadeVersion} that {@link #colours} were computed with
+	 */
+	private int colourVersion = -1;
+
+	/**
+	 * Where this mesh lives in the {@link #pool}, or <code>null</code> if
+	 * we're not using VBOs or have yet to upload
+	 */
+	private VBOPool.Allocation alloc;
+
+	/**
+	 * Buffer storage for all meshes
+	 */
+	private static final VBOPool pool = new VBOPool();
+
+	/**
+	 * @param sb
+	 *           quads added with
+	 *           {@link com.ryanm.minedroid.BlockFactory.Block#quad}, in
+	 *           chunklet-local coordinates, with light words in place of
+	 *           colours
+	 * @param c
+	 *           the chunklet
+	 * @return The mesh, or <code>null</code> if the builder is empty. Quads
+	 *         beyond {@link #MAX_QUADS} are left out
+	 */
+	public static ChunkMesh build( ShapeBuilder sb, Chunklet c )
+	{
+		if( sb.vertexCount == 0 )
+			return null;
+
+		if( sb.vertexCount > MAX_QUADS * 4 )
+			Log.w( Game.RUGL_TAG, "Chunklet " + c.x + ", " + c.y + ", " + c.z
+					+ " has " + sb.vertexCount / 4 + " quads, only drawing "
+					+ MAX_QUADS );
+
+		return new ChunkMesh( sb, c.x, c.y, c.z );
+	}
+
+	/**
+	 * Combines several chunklet meshes into one
+	 * 
+	 * @param parts
+	 *           the meshes to combine, all within 32 blocks of the origin.
+	 *           <code>null</code> elements are skipped
+	 * @param x
+	 *           origin of the combined mesh
+	 * @param y
+	 *           origin of the combined mesh
+	 * @param z
+	 *           origin of the combined mesh
+	 * @param first
+	 *           Filled with the index of the first vertex of each part in the
+	 *           combined mesh
+	 * @return The combined mesh, or <code>null</code> if the parts would not
+	 *         fit in one mesh or there is nothing to combine
+	 */
+	static ChunkMesh merge( ChunkMesh[] parts, int x, int y, int z, int[] first )
+	{
+		int total = 0;
+		for( int i = 0; i < parts.length; i++ )
+			if( parts[ i ] != null )
+				total += parts[ i ].vertexCount;
+
+		if( total == 0 || total > MAX_QUADS * 4 )
+			return null;
+
+		return new ChunkMesh( parts, total, x, y, z, first );
+	}
+
+	private ChunkMesh( ChunkMesh[] parts, int total, int x, int y, int z,
+			int[] first )
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		vertexCount = total;
+		lightWords = new int[total];
+		vertices =
+				ByteBuffer.allocateDirect( vertexCount * STRIDE ).order(
+						ByteOrder.nativeOrder() );
+
+		int v = 0;
+		for( int i = 0; i < parts.length; i++ )
+		{
+			first[ i ] = v;
+			final ChunkMesh p = parts[ i ];
+			if( p == null )
+				continue;
+
+			System.arraycopy( p.lightWords, 0, lightWords, v, p.vertexCount );
+
+			final int dx = ( int ) ( ( p.x - x ) * POSITION_SCALE );
+			final int dy = ( int ) ( ( p.y - y ) * POSITION_SCALE );
+			final int dz = ( int ) ( ( p.z - z ) * POSITION_SCALE );
+			final ByteBuffer pv = p.vertices;
+			for( int j = 0; j < p.vertexCount * STRIDE; j += STRIDE )
+			{
+				vertices.put( ( byte ) ( pv.get( j ) + dx ) );
+				vertices.put( ( byte ) ( pv.get( j + 1 ) + dy ) );
+				vertices.put( ( byte ) ( pv.get( j + 2 ) + dz ) );
+				for( int k = 3; k < STRIDE; k++ )
+					vertices.put( pv.get( j + k ) );
+			}
+
+			v += p.vertexCount;
+		}
+		vertices.flip();
+
+		colours =
+				ByteBuffer.allocateDirect( vertexCount * 4 ).order(
+						ByteOrder.nativeOrder() );
+	}
+
+	private ChunkMesh( ShapeBuilder sb, int x, int y, int z )
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		vertexCount = Math.min( sb.vertexCount, MAX_QUADS * 4 );
+		// the builder is reused, so we need our own copy
+		lightWords = Arrays.copyOf( sb.colours, vertexCount );
+
+		vertices =
+				ByteBuffer.allocateDirect( vertexCount * STRIDE ).order(
+						ByteOrder.nativeOrder() );
+		for( int i = 0; i < vertexCount; i++ )
+		{
+			vertices.put( pack( sb.vertices[ i * 3 ], POSITION_SCALE ) );
+			vertices.put( pack( sb.vertices[ i * 3 + 1 ], POSITION_SCALE ) );
+			vertices.put( pack( sb.vertices[ i * 3 + 2 ], POSITION_SCALE ) );
+			vertices.put( ( byte ) 0 );
+			vertices.put( pack( sb.texCoords[ i * 2 ], TEXCOORD_SCALE ) );
+			vertices.put( pack( sb.texCoords[ i * 2 + 1 ], TEXCOORD_SCALE ) );
+			vertices.put( ( byte ) 0 ).put( ( byte ) 0 );
+		}
+		vertices.flip();
+
+		colours =
+				ByteBuffer.allocateDirect( vertexCount * 4 ).order(
+						ByteOrder.nativeOrder() );
+	}
+
+	private static byte pack( float v, float scale )
+	{
+		return ( byte ) Math.round( v * scale );
+	}
+
+	/**
+	 * @param sky
+	 *           sky light, in range 0 to {@link #MAX_LEVEL}
+	 * @param block
+	 *           block light, in range 0 to {@link #MAX_LEVEL}
+	 * @param occlusion
+	 *           in range 0 (fully occluded) to {@link #UNOCCLUDED}
+	 * @return A packed light word
+	 */
+	public static int lightWord( int sky, int block, int occlusion )
+	{
+		return sky | block << 8 | occlusion << 16;
+	}
+
+	/**
+	 * @param level
+	 *           light level, in range 0-15
+	 * @return The brightness of that light level
+	 */
+	public static float brightness( int level )
+	{
+		return BRIGHTNESS[ level * 4 ];
+	}
+
+	/**
+	 * @param lightWord
+	 * @return The brightness of the light word in full daylight
+	 */
+	public static float daylightBrightness( int lightWord )
+	{
+		final int sky = lightWord & 0xff;
+		final int block = lightWord >> 8 & 0xff;
+		return BRIGHTNESS[ Math.max( sky, block ) ]
+				* OCCLUSION[ lightWord >> 16 & 0xff ];
+	}
+
+	/**
+	 * @param brightness
+	 *           The multiplier for sky light, in range 0 (pitch black) to 1
+	 *           (full daylight). Meshes will be recoloured when next drawn if
+	 *           this causes a visible change
+	 */
+	public static void setSkyBrightness( float brightness )
+	{
+		final int step =
+				Math.round( Math.max( 0, Math.min( 1, brightness ) ) * SKY_STEPS );
+
+		if( step != skyStep )
+		{
+			skyStep = step;
+			buildShade();
+		}
+	}
+
+	/**
+	 * @return The current sky light multiplier
+	 */
+	public static float getSkyBrightness()
+	{
+		return ( float ) skyStep / SKY_STEPS;
+	}
+
+	private static void buildShade()
+	{
+		final float sb = getSkyBrightness();
+
+		int i = 0;
+		for( int sky = 0; sky <= MAX_LEVEL; sky++ )
+			for( int block = 0; block <= MAX_LEVEL; block++ )
+			{
+				final float l = Math.max( BRIGHTNESS[ sky ] * sb, BRIGHTNESS[ block ] );
+				for( int o = 0; o < OCCLUSION.length; o++ )
+					shade[ i++ ] = ( byte ) ( l * OCCLUSION[ o ] * 255 );
+			}
+
+		shadeVersion++;
+	}
+
+	/**
+	 * Works out the vertex colours from the light words
+	 */
+	private void colour()
+	{
+		colours.clear();
+		for( int i = 0; i < vertexCount; i++ )
+		{
+			final int w = lightWords[ i ];
+			final byte s =
+					shade[ ( ( w & 0xff ) * ( MAX_LEVEL + 1 ) + ( w >> 8 & 0xff ) ) * 4
+							+ ( w >> 16 & 0xff ) ];
+			colours.put( s ).put( s ).put( s ).put( ( byte ) 0xff );
+		}
+		colours.flip();
+		colourVersion = shadeVersion;
+	}
+
+	/**
+	 * Sets up rendering state for drawing meshes
+	 * 
+	 * @param state
+	 *           The rendering state to apply
+	 */
+	public static void begin( State state )
+	{
+		if( quadIndices == null )
+			buildQuadIndices();
+
+		if( Game.glVersion == GLVersion.OnePointOne )
+		{
+			if( quadIndexVBO == 0 )
+			{
+				final int[] h = new int[1];
+				GLES11.glGenBuffers( 1, h, 0 );
+				quadIndexVBO = h[ 0 ];
+				GLES11.glBindBuffer( GLES11.GL_ELEMENT_ARRAY_BUFFER, quadIndexVBO );
+				GLES11.glBufferData( GLES11.GL_ELEMENT_ARRAY_BUFFER,
+						quadIndices.limit() * 2, quadIndices, GLES11.GL_STATIC_DRAW );
+			}
+			else
+				GLES11.glBindBuffer( GLES11.GL_ELEMENT_ARRAY_BUFFER, quadIndexVBO );
+		}
+
+		state.apply();
+
+		GLES10.glEnableClientState( GLES10.GL_VERTEX_ARRAY );
+		GLES10.glEnableClientState( GLES10.GL_TEXTURE_COORD_ARRAY );
+		GLES10.glEnableClientState( GLES10.GL_COLOR_ARRAY );
+
+		GLES10.glMatrixMode( GLES10.GL_TEXTURE );
+		GLES10.glPushMatrix();
+		GLES10.glScalef( 1 / TEXCOORD_SCALE, 1 / TEXCOORD_SCALE, 1 );
+		GLES10.glMatrixMode( GLES10.GL_MODELVIEW );
+	}
+
+	/**
+	 * Restores the state changed in {@link #begin(State)}
+	 */
+	public static void end()
+	{
+		if( Game.glVersion == GLVersion.OnePointOne )
+			GLES11.glBindBuffer( GLES11.GL_ELEMENT_ARRAY_BUFFER, 0 );
+
+		GLES10.glMatrixMode( GLES10.GL_TEXTURE );
+		GLES10.glPopMatrix();
+		GLES10.glMatrixMode( GLES10.GL_MODELVIEW );
+	}
+
+	/**
+	 * Draws the mesh. Call {@link #begin(State)} first
+	 */
+	public void draw()
+	{
+		draw( 0, vertexCount );
+	}
+
+	/**
+	 * Draws part of the mesh. Call {@link #begin(State)} first
+	 * 
+	 * @param first
+	 *           index of the first vertex to draw, a multiple of 4
+	 * @param count
+	 *           number of vertices to draw, a multiple of 4
+	 */
+	void draw( int first, int count )
+	{
+		final boolean recolour = colourVersion != shadeVersion;
+		if( recolour )
+			colour();
+
+		GLES10.glPushMatrix();
+		GLES10.glTranslatef( x, y, z );
+		GLES10.glScalef( 1 / POSITION_SCALE, 1 / POSITION_SCALE,
+				1 / POSITION_SCALE );
+
+		if( Game.glVersion == GLVersion.OnePointOne )
+		{
+			if( alloc == null )
+				upload();
+			else if( recolour )
+				pool.writeColours( alloc, colours );
+
+			final int vo = alloc.vertexOffset();
+			GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, alloc.page.handle );
+			GLES11.glVertexPointer( 3, GLES10.GL_BYTE, STRIDE, vo );
+			GLES11.glTexCoordPointer( 2, GLES10.GL_BYTE, STRIDE, vo
+					+ TEXCOORD_OFFSET );
+			GLES11.glColorPointer( 4, GLES10.GL_UNSIGNED_BYTE, 0,
+					alloc.colourOffset() );
+
+			// the shared index buffer is bound in begin()
+			GLES11.glDrawElements( GLES10.GL_TRIANGLES, count / 4 * 6,
+					GLES10.GL_UNSIGNED_SHORT, first / 4 * 6 * 2 );
+
+			GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, 0 );
+		}
+		else
+		{
+			vertices.position( 0 );
+			GLES10.glVertexPointer( 3, GLES10.GL_BYTE, STRIDE, vertices );
+			vertices.position( TEXCOORD_OFFSET );
+			GLES10.glTexCoordPointer( 2, GLES10.GL_BYTE, STRIDE, vertices );
+			vertices.position( 0 );
+			GLES10.glColorPointer( 4, GLES10.GL_UNSIGNED_BYTE, 0, colours );
+			quadIndices.position( first / 4 * 6 );
+			GLES10.glDrawElements( GLES10.GL_TRIANGLES, count / 4 * 6,
+					GLES10.GL_UNSIGNED_SHORT, quadIndices );
+			quadIndices.position( 0 );
+		}
+
+		GLES10.glPopMatrix();
+	}
+
+	/**
+	 * Copies the mesh into the buffer pool, if we're using buffer objects and
+	 * it isn't there already
+	 * 
+	 * @return The number of bytes uploaded
+	 */
+	public int upload()
+	{
+		if( Game.glVersion != GLVersion.OnePointOne || alloc != null )
+			return 0;
+
+		if( colourVersion != shadeVersion )
+			colour();
+
+		alloc = pool.allocate( this, vertices, colours, vertexCount );
+
+		return size();
+	}
+
+	/**
+	 * @return Packed positions and texture coordinates
+	 */
+	ByteBuffer packedVertices()
+	{
+		return vertices;
+	}
+
+	/**
+	 * @return Vertex colours
+	 */
+	ByteBuffer packedColours()
+	{
+		return colours;
+	}
+
+	/**
+	 * Tidies up the buffer pool a little. Call this once per frame on the
+	 * render thread
+	 * 
+	 * @param maxBytes
+	 *           roughly how much mesh data can be moved
+	 * @return The number of bytes moved
+	 */
+	public static int compact( int maxBytes )
+	{
+		return pool.compact( maxBytes );
+	}
+
+	/**
+	 * @return The number of large buffer objects holding mesh data
+	 */
+	public static int getBufferCount()
+	{
+		return pool.pageCount();
+	}
+
+	/**
+	 * Builds the shared quad triangulation: 0, 2, 1 and 2, 3, 1
+	 */
+	private static void buildQuadIndices()
+	{
+		final ShortBuffer qi =
+				ByteBuffer.allocateDirect( MAX_QUADS * 6 * 2 )
+						.order( ByteOrder.nativeOrder() ).asShortBuffer();
+		for( int q = 0; q < MAX_QUADS; q++ )
+		{
+			final int v = q * 4;
+			qi.put( ( short ) v ).put( ( short ) ( v + 2 ) )
+					.put( ( short ) ( v + 1 ) );
+			qi.put( ( short ) ( v + 2 ) ).put( ( short ) ( v + 3 ) )
+					.put( ( short ) ( v + 1 ) );
+		}
+		qi.flip();
+		quadIndices = qi;
+	}
+
+	/**
+	 * @return The shared quad triangulation, for drawing other quad meshes
+	 *         from client-side arrays
+	 */
+	static ShortBuffer quadIndices()
+	{
+		if( quadIndices == null )
+			buildQuadIndices();
+
+		return quadIndices;
+	}
+
+	/**
+	 * Call this when the GL context has been recreated, so that the shared
+	 * index buffer is uploaded again and the dead buffer pool is forgotten
+	 */
+	public static void surfaceCreated()
+	{
+		quadIndexVBO = 0;
+		pool.clear();
+	}
+
+	/**
+	 * @return The number of vertices
+	 */
+	int vertexCount()
+	{
+		return vertexCount;
+	}
+
+	/**
+	 * @return The number of bytes of vertex data
+	 */
+	public int size()
+	{
+		return vertexCount * ( STRIDE + 4 );
+	}
+
+	/**
+	 * Gives up the mesh's space in the buffer pool while keeping the packed
+	 * data, so it can still be merged or drawn. Drawing it again uploads it
+	 * again
+	 */
+	void release()
+	{
+		delete();
+	}
+
+	/**
+	 * Returns the mesh's space in the buffer pool, if any
+	 */
+	public void delete()
+	{
+		if( alloc != null )
+		{
+			if( alloc.page != null )
+				pool.free( alloc );
+			alloc = null;
+		}
+	}
+}
@@ -1,15 +1,16 @@
 package com.ryanm.minedroid.chunk;
 
+import android.os.SystemClock;
+
 import com.ryanm.droid.rugl.geom.ColouredShape;
-import com.ryanm.droid.rugl.geom.CompiledShape;
 import com.ryanm.droid.rugl.geom.Shape;
 import com.ryanm.droid.rugl.geom.WireUtil;
 import com.ryanm.droid.rugl.gl.Renderer;
-import com.ryanm.droid.rugl.gl.VBOShape;
 import com.ryanm.droid.rugl.util.Colour;
 import com.ryanm.droid.rugl.util.geom.Frustum;
 import com.ryanm.droid.rugl.util.geom.Frustum.Result;
 import com.ryanm.minedroid.BlockFactory;
+import com.ryanm.minedroid.World;
 
 /**
  * A 16 * 16 * 16 cube of a {@link Chunk}
@@ -43,36 +44,65 @@ public class Chunklet
 	private boolean geomDirty = true;
 
 	/**
-	 * Solid geometry for GL1.0 users
-	 */
-	private CompiledShape solidVA;
-
-	/**
-	 * Transparent geometry for GL1.0 users
+	 * <code>true</code> if the geometry most recently asked for is the
+	 * simplified kind
 	 */
-	private CompiledShape transparentVA;
+	private boolean lodRequested = false;
 
 	/**
 	 * Solid geometry
 	 */
-	private VBOShape solidVBO;
+	private ChunkMesh solid;
 
 	/**
-	 * This is where we hold a new solid geometry vbo, fresh from the generation
+	 * This is where we hold new solid geometry, fresh from the generation
 	 * thread
 	 */
-	private VBOShape pendingSolid;
+	private ChunkMesh pendingSolid;
 
 	/**
 	 * Transparent geometry
 	 */
-	private VBOShape transparentVBO;
+	private ChunkMesh transparent;
 
 	/**
-	 * This is where we hold a new transparent geometry vbo, fresh from the
+	 * This is where we hold new transparent geometry, fresh from the
 	 * generation thread
 	 */
-	private VBOShape pendingTransparent;
+	private ChunkMesh pendingTransparent;
+
+	/**
+	 * <code>true</code> if there is new geometry waiting in the pending fields
+	 */
+	private volatile boolean geomReady = false;
+
+	/**
+	 * <code>true</code> if this chunklet is in the {@link UploadScheduler}
+	 * queue. Only touched on the render thread
+	 */
+	boolean uploadQueued = false;
+
+	/**
+	 * <code>true</code> once the parent chunk has been unloaded
+	 */
+	private volatile boolean unloaded = false;
+
+	/**
+	 * Incremented every time the solid geometry is swapped
+	 */
+	int geomVersion = 0;
+
+	/**
+	 * When the solid geometry was last swapped, as
+	 * {@link SystemClock#uptimeMillis()}
+	 */
+	long geomTime = 0;
+
+	/**
+	 * The batch that may draw this chunklet, or <code>null</code> if we
+	 * haven't looked it up yet
+	 */
+	RegionBatch batch;
 
 	/**
 	 * <code>true</code> if we're waiting on being processed by the
@@ -120,6 +150,17 @@ public class Chunklet
 	 */
 	public int drawFlag = 0;
 
+	/**
+	 * Stops the {@link LightEngine} reporting this chunklet more than once per
+	 * relighting
+	 */
+	int lightPass = 0;
+
+	/**
+	 * Stops a {@link BulkEdit} remeshing this chunklet more than once
+	 */
+	int editPass = 0;
+
 	/**
 	 * @param parent
 	 * @param y
@@ -137,6 +178,20 @@ public class Chunklet
 
 	private void findSheets()
 	{
+		final Section section = parent.sections[ y / 16 ];
+
+		if( section.isAir() || section.isOpaque() )
+		{ // no need to look at the blocks
+			final boolean opaque = section.isOpaque();
+			northSheet = southSheet = eastSheet = westSheet = opaque;
+			topSheet = bottomSheet = opaque;
+			empty = !opaque;
+			return;
+		}
+
+		northSheet = southSheet = eastSheet = westSheet = true;
+		topSheet = bottomSheet = true;
+
 		for( int i = 0; i < 16; i++ )
 			for( int j = 0; j < 16; j++ )
 			{
@@ -202,110 +257,200 @@ public class Chunklet
 	}
 
 	/**
-	 * Draws the solid geometry
-	 * 
-	 * @param r
-	 *           Renderer to use if we are in gl1.0
+	 * Call this when the lighting, but not the blocks, of this chunklet has
+	 * changed
 	 */
-	public void drawSolid( Renderer r )
+	public void lightDirty()
 	{
-		generateGeometry( false );
-
-		if( pendingSolid != null )
-		{
-			if( solidVBO != null )
-				solidVBO.delete();
-			solidVBO = pendingSolid;
-			pendingSolid = null;
-		}
+		geomDirty = true;
+	}
 
-		if( solidVBO != null )
-			solidVBO.draw();
+	/**
+	 * Draws the solid geometry. Call {@link ChunkMesh#begin} first
+	 */
+	public void drawSolid()
+	{
+		generateGeometry( false );
 
-		if( solidVA != null )
-			solidVA.render( r );
+		if( solid != null )
+			solid.draw();
 	}
 
 	/**
-	 * Draws the transparent geometry
-	 * 
-	 * @param r
-	 *           Renderer to use if we are in gl1.0
+	 * Draws the transparent geometry. Call {@link ChunkMesh#begin}
+	 * first
 	 */
-	public void drawTransparent( Renderer r )
+	public void drawTransparent()
 	{
 		generateGeometry( false );
 
-		if( pendingTransparent != null )
-		{
-			if( transparentVBO != null )
-				transparentVBO.delete();
-			transparentVBO = pendingTransparent;
-			pendingTransparent = null;
-		}
-
-		if( transparentVBO != null )
-			transparentVBO.draw();
+		if( transparent != null )
+			transparent.draw();
+	}
 
-		if( transparentVA != null )
-			transparentVA.render( r );
+	/**
+	 * Replaces the current geometry with freshly-generated meshes, if there are
+	 * any. Called by the {@link UploadScheduler} on the render thread
+	 * 
+	 * @return The number of bytes uploaded
+	 */
+	int swapGeometry()
+	{
+		if( !geomReady || unloaded )
+			return 0;
+
+		geomReady = false;
+		int bytes = 0;
+
+		if( solid != null )
+			solid.delete();
+		solid = pendingSolid;
+		pendingSolid = null;
+		if( solid != null )
+			bytes += solid.upload();
+		geomVersion++;
+		geomTime = SystemClock.uptimeMillis();
+
+		if( transparent != null )
+			transparent.delete();
+		transparent = pendingTransparent;
+		pendingTransparent = null;
+		if( transparent != null )
+			bytes += transparent.upload();
+
+		return bytes;
 	}
 
 	/**
+	 * Synchronized as the spawn chunks are meshed from the loading thread
+	 * while the render thread may be drawing them
+	 * 
 	 * @param synchronous
 	 *           <code>true</code> to generate right now, before doing anything
 	 *           else, <code>false</code> to do it in another thread
 	 */
-	public void generateGeometry( boolean synchronous )
+	public synchronized void generateGeometry( boolean synchronous )
 	{
 		if( empty && !boundariesEmptyChecked )
 		{
-			// need to check the sides of neighbouring blocks too
+			// need to check the sides of neighbouring blocks too, but
+			// the section summaries can usually vouch for them
+			final int sy = y / 16;
+			final World w = parent.world;
+			final boolean north =
+					sectionAir( w.getChunk( parent.chunkX - 1, parent.chunkZ ), sy );
+			final boolean south =
+					sectionAir( w.getChunk( parent.chunkX + 1, parent.chunkZ ), sy );
+			final boolean east =
+					sectionAir( w.getChunk( parent.chunkX, parent.chunkZ - 1 ), sy );
+			final boolean west =
+					sectionAir( w.getChunk( parent.chunkX, parent.chunkZ + 1 ), sy );
+			final boolean below =
+					sy == 0 || parent.sections[ sy - 1 ].maxHeight() < 15;
+			final boolean above = sectionAir( parent, sy + 1 );
+
 			for( int i = 0; i < 16 && empty; i++ )
 				for( int j = 0; j < 16 && empty; j++ )
 				{
-					empty &= blockType( -1, i, j ) == 0;
-					empty &= blockType( 16, i, j ) == 0;
-
-					empty &= blockType( i, -1, j ) == 0;
-					empty &= blockType( i, 16, j ) == 0;
-
-					empty &= blockType( i, j, -1 ) == 0;
-					empty &= blockType( i, j, 16 ) == 0;
+					if( !north )
+						empty &= blockType( -1, i, j ) == 0;
+					if( !south )
+						empty &= blockType( 16, i, j ) == 0;
+
+					if( !below )
+						empty &= blockType( i, -1, j ) == 0;
+					if( !above )
+						empty &= blockType( i, 16, j ) == 0;
+
+					if( !east )
+						empty &= blockType( i, j, -1 ) == 0;
+					if( !west )
+						empty &= blockType( i, j, 16 ) == 0;
 				}
 			boundariesEmptyChecked = true;
 		}
 
-		if( !empty && geomDirty && !geomPending )
+		final boolean lod = parent.isLod();
+		if( !empty && ( geomDirty || lod != lodRequested ) && !geomPending )
 		{
+			// cleared now rather than on completion so that changes made
+			// while we're generating are not lost. The old geometry is
+			// drawn until the new arrives, so switching detail level
+			// doesn't leave holes
+			geomDirty = false;
+			lodRequested = lod;
 			geomPending = true;
-			GeometryGenerator.generate( this, synchronous );
+			GeometryGenerator.generate( this, synchronous, lod );
 		}
 	}
 
+	/**
+	 * @param c
+	 * @param sy
+	 *           section index
+	 * @return <code>true</code> if the section is known to be air. Unloaded
+	 *         chunks and sections outside the world count as air
+	 */
+	private static boolean sectionAir( Chunk c, int sy )
+	{
+		return c == null || sy < 0 || sy >= c.sections.length
+				|| c.sections[ sy ].isAir();
+	}
+
+	/**
+	 * @return The current solid geometry, or <code>null</code> if there is none
+	 */
+	ChunkMesh solidMesh()
+	{
+		return solid;
+	}
+
+	/**
+	 * @return <code>true</code> if the geometry we have on the GPU is up to
+	 *         date: it has been generated since the last change, and swapped
+	 *         in. Chunklets that turned out to have nothing to draw count as
+	 *         up to date
+	 */
+	public boolean isGeometryCurrent()
+	{
+		if( empty )
+			return boundariesEmptyChecked;
+
+		return !geomDirty && !geomPending && !geomReady;
+	}
+
+	/**
+	 * @return <code>true</code> if the parent chunk has been unloaded
+	 */
+	boolean isUnloaded()
+	{
+		return unloaded;
+	}
+
 	/**
 	 * @param solid
+	 *           solid geometry, or <code>null</code> if there is none
 	 * @param transparent
+	 *           transparent geometry, or <code>null</code> if there is none
 	 */
-	public void geometryComplete( VBOShape solid, VBOShape transparent )
+	public void geometryComplete( ChunkMesh solid, ChunkMesh transparent )
 	{
-		geomPending = false;
-		geomDirty = false;
 		pendingSolid = solid;
 		pendingTransparent = transparent;
+		geomReady = true;
+		geomPending = false;
+
+		parent.world.uploads.geometryReady( this );
 	}
 
 	/**
-	 * @param solid
-	 * @param transparent
+	 * Called by the {@link GeometryGenerator} when generation went wrong, so
+	 * that we ask again next time we're drawn
 	 */
-	public void
-			geometryComplete( CompiledShape solid, CompiledShape transparent )
+	void geometryFailed()
 	{
+		geomDirty = true;
 		geomPending = false;
-		geomDirty = false;
-		solidVA = solid;
-		transparentVA = transparent;
 	}
 
 	/**
@@ -329,8 +474,7 @@ public class Chunklet
 	{
 		int sl = parent.skyLight( x, this.y + y, z );
 		int bl = parent.blockLight( x, this.y + y, z );
-		int l = Math.max( sl, bl );
-		return ( float ) Math.pow( 0.8, 15 - l );
+		return ChunkMesh.brightness( Math.max( sl, bl ) );
 	}
 
 	/**
@@ -357,7 +501,7 @@ public class Chunklet
 	 */
 	public void drawOutline( Renderer r )
 	{
-		if( solidVBO != null || transparentVBO != null || geomPending )
+		if( solid != null || transparent != null || geomPending )
 		{
 			if( outline == null )
 			{
@@ -378,10 +522,12 @@ public class Chunklet
 	 */
 	public void unload()
 	{
-		if( solidVBO != null )
-			solidVBO.delete();
+		unloaded = true;
+
+		if( solid != null )
+			solid.delete();
 
-		if( transparentVBO != null )
-			transparentVBO.delete();
+		if( transparent != null )
+			transparent.delete();
 	}
 }
@@ -0,0 +1,60 @@
+package com.ryanm.minedroid.chunk;
+
+/**
+ * A box of block types, copied out of the world to be pasted elsewhere
+ * 
+ * @author ryanm
+ */
+public class Clipboard
+{
+	/**
+	 * Size of the box
+	 */
+	public final int sizeX, sizeY, sizeZ;
+
+	/**
+	 * Block types, indexed as <code>( x * sizeZ + z ) * sizeY + y</code>
+	 */
+	private final byte[] types;
+
+	/**
+	 * @param sizeX
+	 * @param sizeY
+	 * @param sizeZ
+	 */
+	public Clipboard( int sizeX, int sizeY, int sizeZ )
+	{
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		types = new byte[sizeX * sizeY * sizeZ];
+	}
+
+	/**
+	 * @param x
+	 *           in range 0 to {@link #sizeX}
+	 * @param y
+	 *           in range 0 to {@link #sizeY}
+	 * @param z
+	 *           in range 0 to {@link #sizeZ}
+	 * @return the type of that block
+	 */
+	public byte get( int x, int y, int z )
+	{
+		return types[ ( x * sizeZ + z ) * sizeY + y ];
+	}
+
+	/**
+	 * @param x
+	 *           in range 0 to {@link #sizeX}
+	 * @param y
+	 *           in range 0 to {@link #sizeY}
+	 * @param z
+	 *           in range 0 to {@link #sizeZ}
+	 * @param type
+	 */
+	public void set( int x, int y, int z, byte type )
+	{
+		types[ ( x * sizeZ + z ) * sizeY + y ] = type;
+	}
+}
@@ -0,0 +1,190 @@
+package com.ryanm.minedroid.chunk;
+
+import com.ryanm.minedroid.World;
+
+/**
+ * Undo and redo history of block changes. Changes are packed into a fixed
+ * ring of ints, three per change, so the history costs the same however
+ * it's used; once it's full the oldest changes are forgotten. Changes are
+ * grouped so that a whole gesture, or a whole bulk edit, is undone in one
+ * go. Undoing and redoing go through a {@link BulkEdit}, so are relit and
+ * remeshed in one batch
+ * 
+ * @author ryanm
+ */
+public class EditJournal
+{
+	/**
+	 * Marks the first change of a group
+	 */
+	private static final int GROUP_START = 1 << 24;
+
+	private final int capacity;
+
+	/**
+	 * x, z, and packed y, old type, new type and group flag, for each change
+	 */
+	private final int[] data;
+
+	/**
+	 * Sequence numbers of the oldest change remembered, one past the newest
+	 * change that is applied, and one past the newest that can be redone
+	 */
+	private int start = 0, end = 0, top = 0;
+
+	private boolean grouping = false;
+
+	private boolean groupStarted = false;
+
+	/**
+	 * @param capacity
+	 *           the number of changes to remember
+	 */
+	public EditJournal( int capacity )
+	{
+		this.capacity = capacity;
+		data = new int[capacity * 3];
+	}
+
+	/**
+	 * Starts a group: everything recorded until {@link #endGroup()} is undone
+	 * together
+	 */
+	public void beginGroup()
+	{
+		grouping = true;
+		groupStarted = false;
+	}
+
+	/**
+	 * Closes the current group
+	 */
+	public void endGroup()
+	{
+		grouping = false;
+	}
+
+	/**
+	 * Adds some changes to the history. Anything that could be redone is
+	 * forgotten
+	 * 
+	 * @param log
+	 */
+	public void record( EditLog log )
+	{
+		if( log == null || log.isEmpty() )
+			return;
+
+		top = end;
+
+		for( int i = 0; i < log.size(); i++ )
+		{
+			final boolean first = i == 0 && !( grouping && groupStarted );
+
+			if( top - start == capacity )
+				// forget the oldest
+				start++;
+
+			final int s = slot( top );
+			data[ s ] = log.x( i );
+			data[ s + 1 ] = log.z( i );
+			data[ s + 2 ] =
+					log.y( i ) | ( log.oldType( i ) & 0xff ) << 8
+							| ( log.newType( i ) & 0xff ) << 16 | ( first ? GROUP_START : 0 );
+			top++;
+		}
+
+		end = top;
+		groupStarted = true;
+	}
+
+	/**
+	 * @return <code>true</code> if there is something to undo
+	 */
+	public boolean canUndo()
+	{
+		return end > start;
+	}
+
+	/**
+	 * @return <code>true</code> if there is something to redo
+	 */
+	public boolean canRedo()
+	{
+		return end < top;
+	}
+
+	/**
+	 * Reverts the most recent group of changes
+	 * 
+	 * @param world
+	 * @return <code>true</code> if anything was undone
+	 */
+	public boolean undo( World world )
+	{
+		if( !canUndo() )
+			return false;
+
+		final BulkEdit edit = world.beginEdit( false );
+
+		int s;
+		do
+		{
+			end--;
+			s = slot( end );
+			edit.set( data[ s ], data[ s + 2 ] & 0xff, data[ s + 1 ],
+					( byte ) ( data[ s + 2 ] >> 8 ) );
+		}
+		while( end > start && ( data[ s + 2 ] & GROUP_START ) == 0 );
+
+		edit.finish();
+
+		// whatever comes next shouldn't be lumped in with what went before
+		groupStarted = false;
+
+		return true;
+	}
+
+	/**
+	 * Reapplies the most recently undone group of changes
+	 * 
+	 * @param world
+	 * @return <code>true</code> if anything was redone
+	 */
+	public boolean redo( World world )
+	{
+		if( !canRedo() )
+			return false;
+
+		final BulkEdit edit = world.beginEdit( false );
+
+		do
+		{
+			final int s = slot( end );
+			edit.set( data[ s ], data[ s + 2 ] & 0xff, data[ s + 1 ],
+					( byte ) ( data[ s + 2 ] >> 16 ) );
+			end++;
+		}
+		while( end < top && ( data[ slot( end ) + 2 ] & GROUP_START ) == 0 );
+
+		edit.finish();
+
+		groupStarted = false;
+
+		return true;
+	}
+
+	/**
+	 * Forgets everything
+	 */
+	public void clear()
+	{
+		start = end = top = 0;
+		groupStarted = false;
+	}
+
+	private int slot( int sequence )
+	{
+		return sequence % capacity * 3;
+	}
+}
@@ -0,0 +1,103 @@
+package com.ryanm.minedroid.chunk;
+
+/**
+ * A record of block changes, in the order they were made. Each change is
+ * packed into three ints, so even large edits are cheap to keep around
+ * 
+ * @author ryanm
+ */
+public class EditLog
+{
+	private int[] data = new int[48];
+
+	private int size = 0;
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param oldType
+	 * @param newType
+	 */
+	void add( int x, int y, int z, byte oldType, byte newType )
+	{
+		if( 3 * size == data.length )
+		{
+			final int[] nd = new int[data.length * 2];
+			System.arraycopy( data, 0, nd, 0, data.length );
+			data = nd;
+		}
+
+		final int i = 3 * size++;
+		data[ i ] = x;
+		data[ i + 1 ] = z;
+		data[ i + 2 ] =
+				y & 0xff | ( oldType & 0xff ) << 8 | ( newType & 0xff ) << 16;
+	}
+
+	/**
+	 * @return The number of changes
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return <code>true</code> if nothing was changed
+	 */
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * @param i
+	 *           change index
+	 * @return x coordinate of the changed block
+	 */
+	public int x( int i )
+	{
+		return data[ 3 * i ];
+	}
+
+	/**
+	 * @param i
+	 *           change index
+	 * @return y coordinate of the changed block
+	 */
+	public int y( int i )
+	{
+		return data[ 3 * i + 2 ] & 0xff;
+	}
+
+	/**
+	 * @param i
+	 *           change index
+	 * @return z coordinate of the changed block
+	 */
+	public int z( int i )
+	{
+		return data[ 3 * i + 1 ];
+	}
+
+	/**
+	 * @param i
+	 *           change index
+	 * @return The block type before the change
+	 */
+	public byte oldType( int i )
+	{
+		return ( byte ) ( data[ 3 * i + 2 ] >> 8 );
+	}
+
+	/**
+	 * @param i
+	 *           change index
+	 * @return The block type after the change
+	 */
+	public byte newType( int i )
+	{
+		return ( byte ) ( data[ 3 * i + 2 ] >> 16 );
+	}
+}
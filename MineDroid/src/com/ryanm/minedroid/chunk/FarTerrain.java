@@ -0,0 +1,552 @@
+package com.ryanm.minedroid.chunk;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.opengl.GLES10;
+
+import com.ryanm.droid.rugl.gl.GLUtil;
+import com.ryanm.droid.rugl.util.geom.Frustum;
+import com.ryanm.droid.rugl.util.geom.Frustum.Result;
+
+/**
+ * Cheap scenery for the world beyond the load radius. The top surface of
+ * each region in range is read by {@link SurfaceTile} and drawn as a field
+ * of flat-topped, block-coloured cells, with walls where neighbouring cells
+ * differ in height. Regions are loaded one at a time on a background thread,
+ * nearest first, and the area covered by loaded chunks is left out so the
+ * real geometry shows through
+ * 
+ * @author ryanm
+ */
+public class FarTerrain
+{
+	/**
+	 * How far the walls at the edge of the known surface reach down
+	 */
+	private static final int EDGE_DEPTH = 16;
+
+	/**
+	 * Region edge length, in blocks
+	 */
+	private static final int REGION = 32 * 16;
+
+	/**
+	 * Samples per chunk edge
+	 */
+	private static final int PER_CHUNK = 16 / SurfaceTile.SPACING;
+
+	/**
+	 * Brightness of walls relative to tops
+	 */
+	private static final float WALL_SHADE = 0.75f;
+
+	/**
+	 * Most quads a tile can need: a top and four walls for every cell. This
+	 * is more than one set of shared indices can address, so a tile is drawn
+	 * in parts of {@link ChunkMesh#MAX_QUADS}
+	 */
+	private static final int TILE_QUADS = SurfaceTile.SAMPLES
+			* SurfaceTile.SAMPLES * 5;
+
+	private static final ExecutorService loader = Executors
+			.newSingleThreadExecutor();
+
+	/**
+	 * Mesh-building space, only touched on the loader thread
+	 */
+	private static final short[] scratchVertices = new short[TILE_QUADS * 4 * 4];
+
+	private static final int[] scratchColours = new int[TILE_QUADS * 4];
+
+	private final File dir;
+
+	private final HashMap<Long, Tile> tiles = new HashMap<Long, Tile>();
+
+	private final ArrayList<Tile> list = new ArrayList<Tile>();
+
+	private final ArrayList<Tile> wanted = new ArrayList<Tile>();
+
+	/**
+	 * The chunk and radius that the tile set was last worked out for
+	 */
+	private int lastChunkX = Integer.MIN_VALUE, lastChunkZ, lastRadius;
+
+	private float eyeX, eyeZ;
+
+	private final Comparator<Tile> nearest = new Comparator<Tile>(){
+		@Override
+		public int compare( Tile a, Tile b )
+		{
+			final float ad = a.distanceSq( eyeX, eyeZ );
+			final float bd = b.distanceSq( eyeX, eyeZ );
+			return ad < bd ? -1 : ad > bd ? 1 : 0;
+		}
+	};
+
+	/**
+	 * @param dir
+	 *           The world save directory
+	 */
+	public FarTerrain( File dir )
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Works out which regions are needed, starting the loading of new ones
+	 * and dropping those that have fallen out of range. Call this on the
+	 * render thread
+	 * 
+	 * @param x
+	 *           eye position
+	 * @param z
+	 *           eye position
+	 * @param radius
+	 *           how far out to draw, in blocks
+	 */
+	public void update( float x, float z, int radius )
+	{
+		final int cx = ( int ) Math.floor( x / 16 );
+		final int cz = ( int ) Math.floor( z / 16 );
+		if( cx == lastChunkX && cz == lastChunkZ && radius == lastRadius )
+			return;
+
+		lastChunkX = cx;
+		lastChunkZ = cz;
+		lastRadius = radius;
+		eyeX = x;
+		eyeZ = z;
+
+		final int rx0 = ( int ) Math.floor( ( x - radius ) / REGION );
+		final int rx1 = ( int ) Math.floor( ( x + radius ) / REGION );
+		final int rz0 = ( int ) Math.floor( ( z - radius ) / REGION );
+		final int rz1 = ( int ) Math.floor( ( z + radius ) / REGION );
+
+		for( int i = list.size() - 1; i >= 0; i-- )
+		{
+			final Tile t = list.get( i );
+			if( t.rx < rx0 || t.rx > rx1 || t.rz < rz0 || t.rz > rz1 )
+			{
+				t.discarded = true;
+				list.remove( i );
+				tiles.remove( Long.valueOf( key( t.rx, t.rz ) ) );
+			}
+		}
+
+		wanted.clear();
+		for( int rx = rx0; rx <= rx1; rx++ )
+			for( int rz = rz0; rz <= rz1; rz++ )
+			{
+				final Long k = Long.valueOf( key( rx, rz ) );
+				if( !tiles.containsKey( k ) )
+				{
+					final Tile t = new Tile( rx, rz );
+					tiles.put( k, t );
+					list.add( t );
+					wanted.add( t );
+				}
+			}
+
+		Collections.sort( wanted, nearest );
+		for( int i = 0; i < wanted.size(); i++ )
+			loader.submit( wanted.get( i ) );
+		wanted.clear();
+	}
+
+	/**
+	 * Draws the loaded regions
+	 * 
+	 * @param frustum
+	 * @param x0
+	 *           lowest x chunk coordinate of the area to leave out
+	 * @param z0
+	 *           lowest z chunk coordinate of the area to leave out
+	 * @param x1
+	 *           highest x chunk coordinate of the area to leave out
+	 * @param z1
+	 *           highest z chunk coordinate of the area to leave out
+	 */
+	public void draw( Frustum frustum, int x0, int z0, int x1, int z1 )
+	{
+		if( list.isEmpty() )
+			return;
+
+		GLUtil.typicalState.apply();
+
+		GLES10.glEnableClientState( GLES10.GL_VERTEX_ARRAY );
+		GLES10.glEnableClientState( GLES10.GL_COLOR_ARRAY );
+		GLES10.glDisableClientState( GLES10.GL_TEXTURE_COORD_ARRAY );
+
+		final float sky = ChunkMesh.getSkyBrightness();
+		final ShortBuffer indices = ChunkMesh.quadIndices();
+
+		for( int i = 0; i < list.size(); i++ )
+		{
+			final Tile t = list.get( i );
+			if( t.ready
+					&& t.vertices != null
+					&& frustum.cuboidIntersects( t.rx * REGION, 0, t.rz * REGION,
+							( t.rx + 1 ) * REGION, 128, ( t.rz + 1 ) * REGION ) != Result.Miss )
+				t.draw( sky, indices, x0, z0, x1, z1 );
+		}
+
+		GLES10.glEnableClientState( GLES10.GL_TEXTURE_COORD_ARRAY );
+	}
+
+	/**
+	 * Forgets all regions
+	 */
+	public void clear()
+	{
+		for( int i = 0; i < list.size(); i++ )
+			list.get( i ).discarded = true;
+		list.clear();
+		tiles.clear();
+		lastChunkX = Integer.MIN_VALUE;
+	}
+
+	/**
+	 * @return The number of regions that have been loaded
+	 */
+	public int getLoadedCount()
+	{
+		int n = 0;
+		for( int i = 0; i < list.size(); i++ )
+			if( list.get( i ).ready )
+				n++;
+		return n;
+	}
+
+	private static long key( int rx, int rz )
+	{
+		return rx & 0xffffffffL | ( long ) rz << 32;
+	}
+
+	/**
+	 * @param rgb
+	 *           0xRRGGBB
+	 * @param shade
+	 * @return rgb, darkened
+	 */
+	private static int shade( int rgb, float shade )
+	{
+		final int r = ( int ) ( ( rgb >> 16 & 0xff ) * shade );
+		final int g = ( int ) ( ( rgb >> 8 & 0xff ) * shade );
+		final int b = ( int ) ( ( rgb & 0xff ) * shade );
+		return r << 16 | g << 8 | b;
+	}
+
+	/**
+	 * The surface and mesh of one region
+	 */
+	private class Tile implements Runnable
+	{
+		/**
+		 * Region coordinates
+		 */
+		private final int rx, rz;
+
+		/**
+		 * <code>true</code> once the mesh has been built
+		 */
+		private volatile boolean ready = false;
+
+		/**
+		 * <code>true</code> if the tile is no longer wanted
+		 */
+		private volatile boolean discarded = false;
+
+		/**
+		 * Region-local positions, 4 shorts per vertex
+		 */
+		private ShortBuffer vertices;
+
+		/**
+		 * Shaded vertex colours, as 0xRRGGBB
+		 */
+		private int[] base;
+
+		private ByteBuffer colours;
+
+		/**
+		 * The sky brightness that {@link #colours} were computed for
+		 */
+		private float colourSky = -1;
+
+		/**
+		 * For each sample row and chunk column, the index of the first quad.
+		 * Indexed as <code>row * 33 + column</code>, and the 33rd entry of each
+		 * row marks its end
+		 */
+		private final int[] rowStart = new int[SurfaceTile.SAMPLES * 33];
+
+		private Tile( int rx, int rz )
+		{
+			this.rx = rx;
+			this.rz = rz;
+		}
+
+		private float distanceSq( float x, float z )
+		{
+			final float dx = ( rx + 0.5f ) * REGION - x;
+			final float dz = ( rz + 0.5f ) * REGION - z;
+			return dx * dx + dz * dz;
+		}
+
+		@Override
+		public void run()
+		{
+			if( discarded )
+				return;
+
+			build( SurfaceTile.load( dir, rx, rz ) );
+			ready = true;
+		}
+
+		/**
+		 * Meshes the surface, cell by cell along sample rows so that each
+		 * chunk's share of a row is a contiguous range of quads
+		 * 
+		 * @param s
+		 */
+		private void build( SurfaceTile s )
+		{
+			final int n = SurfaceTile.SAMPLES;
+			final int sp = SurfaceTile.SPACING;
+			int quads = 0;
+
+			for( int sz = 0; sz < n; sz++ )
+			{
+				for( int sx = 0; sx < n; sx++ )
+				{
+					if( sx % PER_CHUNK == 0 )
+						rowStart[ sz * 33 + sx / PER_CHUNK ] = quads;
+
+					final int h = s.height( sx, sz );
+					if( h < 0 )
+						continue;
+
+					final int top = SurfaceTile.colour( s.type( sx, sz ) );
+					final int wall = shade( top, WALL_SHADE );
+					final int x0 = sx * sp, x1 = x0 + sp;
+					final int z0 = sz * sp, z1 = z0 + sp;
+
+					// top
+					int v = quads * 4;
+					vertex( v++, x0, h, z0, top );
+					vertex( v++, x0, h, z1, top );
+					vertex( v++, x1, h, z0, top );
+					vertex( v++, x1, h, z1, top );
+					quads++;
+
+					// walls on the +ve sides are shared with the neighbour, on
+					// the -ve sides we only need them at the edge of the data
+					final int px = sx + 1 < n ? s.height( sx + 1, sz ) : -1;
+					final int pxw =
+							px < 0 ? wall : shade( SurfaceTile.colour( s.type( sx + 1, sz ) ),
+									WALL_SHADE );
+					quads += xWall( quads, x1, z0, z1, h, px < 0 ? h - EDGE_DEPTH : px,
+							wall, pxw );
+
+					final int pz = sz + 1 < n ? s.height( sx, sz + 1 ) : -1;
+					final int pzw =
+							pz < 0 ? wall : shade( SurfaceTile.colour( s.type( sx, sz + 1 ) ),
+									WALL_SHADE );
+					quads += zWall( quads, z1, x0, x1, h, pz < 0 ? h - EDGE_DEPTH : pz,
+							wall, pzw );
+
+					if( sx == 0 || s.height( sx - 1, sz ) < 0 )
+						quads += xWall( quads, x0, z0, z1, h - EDGE_DEPTH, h, wall, wall );
+
+					if( sz == 0 || s.height( sx, sz - 1 ) < 0 )
+						quads += zWall( quads, z0, x0, x1, h - EDGE_DEPTH, h, wall, wall );
+				}
+
+				rowStart[ sz * 33 + 32 ] = quads;
+			}
+
+			if( quads == 0 )
+				return;
+
+			final ShortBuffer vb =
+					ByteBuffer.allocateDirect( quads * 4 * 4 * 2 )
+							.order( ByteOrder.nativeOrder() ).asShortBuffer();
+			vb.put( scratchVertices, 0, quads * 4 * 4 );
+			vb.flip();
+
+			base = new int[quads * 4];
+			System.arraycopy( scratchColours, 0, base, 0, base.length );
+			colours =
+					ByteBuffer.allocateDirect( base.length * 4 ).order(
+							ByteOrder.nativeOrder() );
+			vertices = vb;
+		}
+
+		/**
+		 * Adds a wall on a plane of constant x. The wall belongs to the higher
+		 * side and faces the lower
+		 * 
+		 * @param q
+		 *           quad index
+		 * @param x
+		 * @param z0
+		 * @param z1
+		 * @param a
+		 *           surface height on the -ve side
+		 * @param b
+		 *           surface height on the +ve side
+		 * @param aColour
+		 *           wall colour of the -ve side
+		 * @param bColour
+		 *           wall colour of the +ve side
+		 * @return The number of quads added
+		 */
+		private int xWall( int q, int x, int z0, int z1, int a, int b,
+				int aColour, int bColour )
+		{
+			int v = q * 4;
+			if( a > b )
+			{ // facing +x
+				vertex( v++, x, b, z0, aColour );
+				vertex( v++, x, a, z0, aColour );
+				vertex( v++, x, b, z1, aColour );
+				vertex( v++, x, a, z1, aColour );
+				return 1;
+			}
+			else if( a < b )
+			{ // facing -x
+				vertex( v++, x, a, z1, bColour );
+				vertex( v++, x, b, z1, bColour );
+				vertex( v++, x, a, z0, bColour );
+				vertex( v++, x, b, z0, bColour );
+				return 1;
+			}
+			return 0;
+		}
+
+		/**
+		 * Adds a wall on a plane of constant z, as
+		 * {@link #xWall(int, int, int, int, int, int, int, int)}
+		 * 
+		 * @return The number of quads added
+		 */
+		private int zWall( int q, int z, int x0, int x1, int a, int b,
+				int aColour, int bColour )
+		{
+			int v = q * 4;
+			if( a > b )
+			{ // facing +z
+				vertex( v++, x1, b, z, aColour );
+				vertex( v++, x1, a, z, aColour );
+				vertex( v++, x0, b, z, aColour );
+				vertex( v++, x0, a, z, aColour );
+				return 1;
+			}
+			else if( a < b )
+			{ // facing -z
+				vertex( v++, x0, a, z, bColour );
+				vertex( v++, x0, b, z, bColour );
+				vertex( v++, x1, a, z, bColour );
+				vertex( v++, x1, b, z, bColour );
+				return 1;
+			}
+			return 0;
+		}
+
+		private void vertex( int v, int x, int y, int z, int colour )
+		{
+			scratchVertices[ v * 4 ] = ( short ) x;
+			scratchVertices[ v * 4 + 1 ] = ( short ) y;
+			scratchVertices[ v * 4 + 2 ] = ( short ) z;
+			scratchColours[ v ] = colour;
+		}
+
+		private void draw( float sky, ShortBuffer indices, int x0, int z0,
+				int x1, int z1 )
+		{
+			if( sky != colourSky )
+			{
+				colours.clear();
+				for( int i = 0; i < base.length; i++ )
+				{
+					final int c = base[ i ];
+					colours.put( ( byte ) ( ( c >> 16 & 0xff ) * sky ) );
+					colours.put( ( byte ) ( ( c >> 8 & 0xff ) * sky ) );
+					colours.put( ( byte ) ( ( c & 0xff ) * sky ) );
+					colours.put( ( byte ) 0xff );
+				}
+				colours.flip();
+				colourSky = sky;
+			}
+
+			GLES10.glPushMatrix();
+			GLES10.glTranslatef( rx * REGION, 0, rz * REGION );
+
+			// the excluded columns, in region-local chunk coordinates
+			final int ex0 = Math.max( x0 - rx * 32, 0 );
+			final int ex1 = Math.min( x1 - rx * 32, 31 );
+
+			int runStart = 0;
+			int runEnd = 0;
+			for( int sz = 0; sz < SurfaceTile.SAMPLES; sz++ )
+			{
+				final int cz = rz * 32 + sz / PER_CHUNK;
+				final int row = sz * 33;
+
+				if( cz >= z0 && cz <= z1 && ex0 <= ex1 )
+				{
+					// stop before the hole and pick up again after it
+					runEnd = rowStart[ row + ex0 ];
+					drawRun( indices, runStart, runEnd );
+					runStart = rowStart[ row + ex1 + 1 ];
+				}
+				runEnd = rowStart[ row + 32 ];
+			}
+			drawRun( indices, runStart, runEnd );
+
+			vertices.position( 0 );
+			colours.position( 0 );
+
+			GLES10.glPopMatrix();
+		}
+
+		/**
+		 * Draws a range of quads, a part at a time if it crosses the
+		 * {@link ChunkMesh#MAX_QUADS} boundary. Each part's vertices are
+		 * pointed at separately, so the shared indices can reach them
+		 * 
+		 * @param indices
+		 * @param first
+		 * @param end
+		 */
+		private void drawRun( ShortBuffer indices, int first, int end )
+		{
+			while( end > first )
+			{
+				final int base = first - first % ChunkMesh.MAX_QUADS;
+				final int stop = Math.min( end, base + ChunkMesh.MAX_QUADS );
+
+				vertices.position( base * 4 * 4 );
+				GLES10.glVertexPointer( 3, GLES10.GL_SHORT, 8, vertices );
+				colours.position( base * 4 * 4 );
+				GLES10.glColorPointer( 4, GLES10.GL_UNSIGNED_BYTE, 0, colours );
+
+				indices.position( ( first - base ) * 6 );
+				GLES10.glDrawElements( GLES10.GL_TRIANGLES, ( stop - first ) * 6,
+						GLES10.GL_UNSIGNED_SHORT, indices );
+				indices.position( 0 );
+
+				first = stop;
+			}
+		}
+	}
+}
@@ -3,18 +3,19 @@ package com.ryanm.minedroid.chunk;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import android.util.Log;
+
 import com.ryanm.droid.rugl.Game;
-import com.ryanm.droid.rugl.geom.CompiledShape;
 import com.ryanm.droid.rugl.geom.ShapeBuilder;
-import com.ryanm.droid.rugl.geom.TexturedShape;
-import com.ryanm.droid.rugl.gl.GLVersion;
-import com.ryanm.droid.rugl.gl.VBOShape;
-import com.ryanm.droid.rugl.util.Colour;
 import com.ryanm.minedroid.BlockFactory;
 import com.ryanm.minedroid.BlockFactory.Block;
 import com.ryanm.minedroid.BlockFactory.Face;
 
 /**
+ * Builds chunklet meshes. The blocks and light values of the chunklet and a
+ * one-block border are copied into a padded snapshot first, so that the
+ * meshing loops never have to go looking in neighbouring chunks
+ * 
  * @author ryanm
  */
 public class GeometryGenerator
@@ -27,11 +28,63 @@ public class GeometryGenerator
 
 	private static ShapeBuilder immediateTransVBOBuilder = new ShapeBuilder();
 
+	private static final Snapshot queuedSnapshot = new Snapshot();
+
+	private static final Snapshot immediateSnapshot = new Snapshot();
+
+	private static final LodGenerator queuedLod = new LodGenerator();
+
+	private static final LodGenerator immediateLod = new LodGenerator();
+
 	private static ExecutorService geomGenService = Executors
 			.newSingleThreadExecutor();
 
 	private static int queueSize = 0;
 
+	/**
+	 * <code>true</code> to interpolate light across faces and darken corners,
+	 * <code>false</code> for one flat colour per face
+	 */
+	public static boolean smoothLighting = true;
+
+	/**
+	 * Snapshot edge length
+	 */
+	private static final int SIZE = 18;
+
+	/**
+	 * Snapshot index offsets
+	 */
+	private static final int DX = SIZE * SIZE, DY = 1, DZ = SIZE;
+
+	/**
+	 * For each face and vertex, the snapshot offsets from the lit cell to the
+	 * two side cells and the corner cell that meet at that vertex. Indexed as
+	 * <code>( face * 4 + vertex ) * 3</code>
+	 */
+	private static final int[] CORNERS = new int[Face.values().length * 4 * 3];
+
+	static
+	{
+		final int[] strides = { DX, DY, DZ };
+		for( final Face f : Face.values() )
+		{
+			final int n = normalAxis( f );
+			final int u = n == 0 ? 1 : 0;
+			final int v = n == 2 ? 1 : 2;
+
+			for( int vert = 0; vert < 4; vert++ )
+			{
+				final int du = ( f.vertex( vert, u ) > 0.5f ? 1 : -1 ) * strides[ u ];
+				final int dv = ( f.vertex( vert, v ) > 0.5f ? 1 : -1 ) * strides[ v ];
+				final int i = ( f.ordinal() * 4 + vert ) * 3;
+				CORNERS[ i ] = du;
+				CORNERS[ i + 1 ] = dv;
+				CORNERS[ i + 2 ] = du + dv;
+			}
+		}
+	}
+
 	/**
 	 * @return The number of chunklets awaiting geometry generation
 	 */
@@ -45,95 +98,36 @@ public class GeometryGenerator
 	 * 
 	 * @param c
 	 * @param synchronous
+	 * @param lod
+	 *           <code>true</code> for simplified geometry, see
+	 *           {@link LodGenerator}
 	 */
-	public static void generate( final Chunklet c, final boolean synchronous )
+	public static void generate( final Chunklet c, final boolean synchronous,
+			final boolean lod )
 	{
 		Runnable r = new Runnable(){
 			@Override
 			public void run()
 			{
-				ShapeBuilder opaqueVBOBuilder =
-						synchronous ? immediateOpaqueVBOBuilder
-								: queuedOpaqueVBOBuilder;
-				ShapeBuilder transVBOBuilder =
-						synchronous ? immediateTransVBOBuilder
-								: queuedTransVBOBuilder;
-
-				// not sure why this is needed, but it is
-				opaqueVBOBuilder.clear();
-				transVBOBuilder.clear();
-
-				for( int xi = 0; xi < 16; xi++ )
-					for( int yi = 0; yi < 16; yi++ )
-						for( int zi = 0; zi < 16; zi++ )
-						{
-							Block b =
-									BlockFactory.getBlock( c.blockType( xi, yi, zi ) );
-
-							float light = c.light( xi, yi, zi );
-
-							if( b == Block.Slab )
-								// the half-blocks
-								light = c.light( xi, yi + 1, zi );
-
-							int colour = Colour.packFloat( light, light, light, 1 );
-
-							if( b == null || !b.opaque )
-							{
-								addFace( c, b, xi - 1, yi, zi, Face.South, colour,
-										opaqueVBOBuilder, transVBOBuilder );
-								addFace( c, b, xi + 1, yi, zi, Face.North, colour,
-										opaqueVBOBuilder, transVBOBuilder );
-								addFace( c, b, xi, yi, zi - 1, Face.West, colour,
-										opaqueVBOBuilder, transVBOBuilder );
-								addFace( c, b, xi, yi, zi + 1, Face.East, colour,
-										opaqueVBOBuilder, transVBOBuilder );
-								addFace( c, b, xi, yi + 1, zi, Face.Bottom, colour,
-										opaqueVBOBuilder, transVBOBuilder );
-								addFace( c, b, xi, yi - 1, zi, Face.Top, colour,
-										opaqueVBOBuilder, transVBOBuilder );
-							}
-						}
-
-				TexturedShape s = opaqueVBOBuilder.compile();
-				if( s != null )
-				{
-					s.state = BlockFactory.state;
-					s.translate( c.x, c.y, c.z );
-				}
-				TexturedShape t = transVBOBuilder.compile();
-				if( t != null )
+				boolean delivered = false;
+				try
 				{
-					t.state = BlockFactory.state;
-					t.translate( c.x, c.y, c.z );
+					build( c, synchronous, lod );
+					delivered = true;
 				}
-
-				if( Game.glVersion == GLVersion.OnePointOne )
+				catch( final RuntimeException e )
 				{
-					VBOShape solid = null;
-					if( s != null )
-						solid = new VBOShape( s );
-
-					VBOShape transparent = null;
-					if( t != null )
-						transparent = new VBOShape( t );
-
-					c.geometryComplete( solid, transparent );
+					// the executor would swallow this
+					Log.e( Game.RUGL_TAG, "Could not generate geometry", e );
 				}
-				else
+				finally
 				{
-					CompiledShape solid = null;
-					if( s != null )
-						solid = new CompiledShape( s );
-
-					CompiledShape transparent = null;
-					if( t != null )
-						transparent = new CompiledShape( t );
-
-					c.geometryComplete( solid, transparent );
+					// the chunklet needs to know if it's not getting any
+					// geometry, or it will never ask again
+					if( !delivered )
+						c.geometryFailed();
+					queueSize--;
 				}
-
-				queueSize--;
 			}
 		};
 
@@ -144,12 +138,278 @@ public class GeometryGenerator
 			geomGenService.submit( r );
 	}
 
-	private static void addFace( Chunklet c, Block facing, int x, int y, int z,
-			Face f, int colour, ShapeBuilder opaque, ShapeBuilder transparent )
+	/**
+	 * Generates and delivers the geometry for a chunklet
+	 * 
+	 * @param c
+	 * @param synchronous
+	 *           <code>true</code> if we're on the calling thread rather than
+	 *           the generation thread
+	 * @param lod
+	 *           <code>true</code> for simplified geometry
+	 */
+	private static void build( final Chunklet c, final boolean synchronous,
+			final boolean lod )
 	{
-		Block b = BlockFactory.getBlock( c.blockType( x, y, z ) );
+		ShapeBuilder opaqueVBOBuilder =
+				synchronous ? immediateOpaqueVBOBuilder
+						: queuedOpaqueVBOBuilder;
+		ShapeBuilder transVBOBuilder =
+				synchronous ? immediateTransVBOBuilder
+						: queuedTransVBOBuilder;
+		Snapshot snap = synchronous ? immediateSnapshot : queuedSnapshot;
+
+		// not sure why this is needed, but it is
+		opaqueVBOBuilder.clear();
+		transVBOBuilder.clear();
+
+		if( lod )
+		{
+			( synchronous ? immediateLod : queuedLod ).build( c,
+					opaqueVBOBuilder, transVBOBuilder );
+
+			c.geometryComplete( ChunkMesh.build( opaqueVBOBuilder, c ),
+					ChunkMesh.build( transVBOBuilder, c ) );
+
+			return;
+		}
+
+		snap.fill( c );
+		final boolean smooth = smoothLighting;
+
+		for( int xi = 0; xi < 16; xi++ )
+			for( int zi = 0; zi < 16; zi++ )
+			{
+				int i = Snapshot.index( xi, 0, zi );
+				for( int yi = 0; yi < 16; yi++, i++ )
+				{
+					Block b = BlockFactory.getBlock( snap.types[ i ] );
+
+					if( b == null || !b.opaque )
+					{
+						// the half-blocks take light from above
+						int li = b == Block.Slab ? i + DY : i;
+						int flat =
+								ChunkMesh.lightWord( snap.sky[ li ] * 4,
+										snap.block[ li ] * 4, ChunkMesh.UNOCCLUDED );
+						boolean sf = smooth && b != Block.Slab;
+
+						addFace( snap, b, i, xi - 1, yi, zi, Face.South, flat,
+								sf, opaqueVBOBuilder, transVBOBuilder );
+						addFace( snap, b, i, xi + 1, yi, zi, Face.North, flat,
+								sf, opaqueVBOBuilder, transVBOBuilder );
+						addFace( snap, b, i, xi, yi, zi - 1, Face.West, flat,
+								sf, opaqueVBOBuilder, transVBOBuilder );
+						addFace( snap, b, i, xi, yi, zi + 1, Face.East, flat,
+								sf, opaqueVBOBuilder, transVBOBuilder );
+						addFace( snap, b, i, xi, yi + 1, zi, Face.Bottom, flat,
+								sf, opaqueVBOBuilder, transVBOBuilder );
+						addFace( snap, b, i, xi, yi - 1, zi, Face.Top, flat, sf,
+								opaqueVBOBuilder, transVBOBuilder );
+					}
+				}
+			}
+
+		// colours hold light words rather than colours, and
+		// coordinates are left chunklet-local for packing
+		c.geometryComplete( ChunkMesh.build( opaqueVBOBuilder, c ),
+				ChunkMesh.build( transVBOBuilder, c ) );
+	}
+
+	/**
+	 * @param snap
+	 * @param facing
+	 *           the block in the lit cell
+	 * @param lit
+	 *           snapshot index of the lit cell
+	 * @param x
+	 *           chunklet coordinate of the block to add a face for
+	 * @param y
+	 * @param z
+	 * @param f
+	 *           the face of that block that looks into the lit cell
+	 * @param flat
+	 *           light word for flat lighting
+	 * @param smooth
+	 *           <code>true</code> to light each vertex separately
+	 * @param opaque
+	 * @param transparent
+	 */
+	private static void addFace( Snapshot snap, Block facing, int lit, int x,
+			int y, int z, Face f, int flat, boolean smooth, ShapeBuilder opaque,
+			ShapeBuilder transparent )
+	{
+		Block b = BlockFactory.getBlock( snap.types[ Snapshot.index( x, y, z ) ] );
 
 		if( b != null && b != facing )
-			b.face( f, x, y, z, colour, b.opaque ? opaque : transparent );
+		{
+			ShapeBuilder sb = b.opaque ? opaque : transparent;
+
+			if( smooth )
+			{
+				final int corner = f.ordinal() * 4 * 3;
+				final int w0 = vertexLight( snap, lit, corner );
+				final int w1 = vertexLight( snap, lit, corner + 3 );
+				final int w2 = vertexLight( snap, lit, corner + 6 );
+				final int w3 = vertexLight( snap, lit, corner + 9 );
+
+				// split along the brighter diagonal, so that a single dark
+				// corner stays in the corner
+				final boolean flip =
+						ChunkMesh.daylightBrightness( w0 )
+								+ ChunkMesh.daylightBrightness( w3 ) > ChunkMesh
+								.daylightBrightness( w1 )
+								+ ChunkMesh.daylightBrightness( w2 );
+
+				b.quad( f, x, y, z, w0, w1, w2, w3, flip, sb );
+			}
+			else
+				b.quad( f, x, y, z, flat, flat, flat, flat, false, sb );
+		}
+	}
+
+	/**
+	 * Averages the light of the non-opaque cells around a vertex and darkens
+	 * it according to how enclosed it is
+	 * 
+	 * @param snap
+	 * @param lit
+	 *           snapshot index of the lit cell
+	 * @param corner
+	 *           index into {@link #CORNERS}
+	 * @return vertex light word
+	 */
+	private static int vertexLight( Snapshot snap, int lit, int corner )
+	{
+		final int si = lit + CORNERS[ corner ];
+		final int sj = lit + CORNERS[ corner + 1 ];
+		final int ci = lit + CORNERS[ corner + 2 ];
+
+		final boolean side1 = BlockFactory.opaque( snap.types[ si ] );
+		final boolean side2 = BlockFactory.opaque( snap.types[ sj ] );
+		// the corner cell can't be seen past two opaque sides
+		final boolean corn = side1 && side2 || BlockFactory.opaque( snap.types[ ci ] );
+
+		int sky = snap.sky[ lit ];
+		int block = snap.block[ lit ];
+		int count = 1;
+		if( !side1 )
+		{
+			sky += snap.sky[ si ];
+			block += snap.block[ si ];
+			count++;
+		}
+		if( !side2 )
+		{
+			sky += snap.sky[ sj ];
+			block += snap.block[ sj ];
+			count++;
+		}
+		if( !corn )
+		{
+			sky += snap.sky[ ci ];
+			block += snap.block[ ci ];
+			count++;
+		}
+
+		int occlusion = 3;
+		if( side1 && side2 )
+			occlusion = 0;
+		else
+		{
+			if( side1 )
+				occlusion--;
+			if( side2 )
+				occlusion--;
+			if( corn )
+				occlusion--;
+		}
+
+		return ChunkMesh.lightWord( ( sky * 4 + count / 2 ) / count,
+				( block * 4 + count / 2 ) / count, occlusion );
+	}
+
+	/**
+	 * @param f
+	 * @return 0, 1 or 2 for the x, y or z axis along which the face looks
+	 */
+	private static int normalAxis( Face f )
+	{
+		switch( f )
+		{
+			case North:
+			case South:
+				return 0;
+			case Top:
+			case Bottom:
+				return 1;
+			default:
+				return 2;
+		}
+	}
+
+	/**
+	 * Block types and light levels for a chunklet and a one-block border, so
+	 * meshing doesn't have to check chunk boundaries for every cell
+	 */
+	private static class Snapshot
+	{
+		private final byte[] types = new byte[SIZE * SIZE * SIZE];
+
+		private final byte[] sky = new byte[SIZE * SIZE * SIZE];
+
+		private final byte[] block = new byte[SIZE * SIZE * SIZE];
+
+		/**
+		 * @param x
+		 *           chunklet coordinate, in range -1 to 16
+		 * @param y
+		 *           chunklet coordinate, in range -1 to 16
+		 * @param z
+		 *           chunklet coordinate, in range -1 to 16
+		 * @return index into the snapshot arrays
+		 */
+		private static int index( int x, int y, int z )
+		{
+			return ( x + 1 ) * DX + ( y + 1 ) * DY + ( z + 1 ) * DZ;
+		}
+
+		private void fill( Chunklet c )
+		{
+			final Chunk parent = c.parent;
+
+			for( int x = -1; x <= 16; x++ )
+				for( int z = -1; z <= 16; z++ )
+				{
+					// find the chunk once per column
+					final int cx = x >> 4, cz = z >> 4;
+					// the generator thread can't trust the chunk array
+					final Chunk chunk =
+							cx == 0 && cz == 0 ? parent : parent.world
+									.getLoadedChunk( parent.chunkX + cx, parent.chunkZ
+											+ cz );
+					final int bx = x & 15, bz = z & 15;
+
+					int i = index( x, -1, z );
+					for( int y = -1; y <= 16; y++, i++ )
+					{
+						final int wy = c.y + y;
+						if( chunk == null || wy < 0 || wy >= 128 )
+						{
+							types[ i ] = 0;
+							sky[ i ] = 0;
+							block[ i ] = 0;
+						}
+						else
+						{
+							final Section s = chunk.sections[ wy >> 4 ];
+							final int si = Chunk.sectionIndex( bx, wy, bz );
+							types[ i ] = s.blockType( si );
+							sky[ i ] = ( byte ) s.skyLight( si );
+							block[ i ] = ( byte ) s.blockLight( si );
+						}
+					}
+				}
+		}
 	}
 }
@@ -0,0 +1,80 @@
+package com.ryanm.minedroid.chunk;
+
+/**
+ * A growable first-in-first-out queue of primitive ints, so that flood fills
+ * don't box every cell they touch
+ * 
+ * @author ryanm
+ */
+class IntQueue
+{
+	private int[] data;
+
+	private int head = 0;
+
+	private int size = 0;
+
+	/**
+	 * @param capacity
+	 *           initial capacity
+	 */
+	IntQueue( int capacity )
+	{
+		data = new int[capacity];
+	}
+
+	/**
+	 * @param v
+	 */
+	void add( int v )
+	{
+		if( size == data.length )
+		{
+			final int[] nd = new int[data.length * 2];
+			final int tail = data.length - head;
+			System.arraycopy( data, head, nd, 0, tail );
+			System.arraycopy( data, 0, nd, tail, head );
+			data = nd;
+			head = 0;
+		}
+
+		data[ ( head + size ) % data.length ] = v;
+		size++;
+	}
+
+	/**
+	 * @return The oldest value in the queue, which is removed
+	 */
+	int poll()
+	{
+		final int v = data[ head ];
+		head = ( head + 1 ) % data.length;
+		size--;
+		return v;
+	}
+
+	/**
+	 * @return <code>true</code> if there is nothing in the queue
+	 */
+	boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * @return The number of values in the queue
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Empties the queue
+	 */
+	void clear()
+	{
+		head = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,442 @@
+package com.ryanm.minedroid.chunk;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.ryanm.minedroid.BlockFactory;
+import com.ryanm.minedroid.World;
+
+/**
+ * Incrementally updates block light and sky light after blocks are changed.
+ * Changes are queued up and relit in batches on a worker thread with a pair
+ * of breadth-first flood fills per channel: one to take away light that no
+ * longer has a source, then one to spread light back in from whatever
+ * sources remain. Chunklets that were touched are handed back to the
+ * {@link World} to be remeshed
+ * 
+ * @author ryanm
+ */
+public class LightEngine
+{
+	private static final int BLOCK = 0;
+
+	private static final int SKY = 1;
+
+	/**
+	 * Neighbour offsets
+	 */
+	private static final int[] DX = { -1, 1, 0, 0, 0, 0 };
+
+	private static final int[] DY = { 0, 0, -1, 1, 0, 0 };
+
+	private static final int[] DZ = { 0, 0, 0, 0, -1, 1 };
+
+	/**
+	 * Index of the downwards offset, sky light at full strength travels down
+	 * without attenuation
+	 */
+	private static final int DOWN = 2;
+
+	/**
+	 * Packed positions are relative to the origin and limited to this distance
+	 */
+	private static final int RANGE = 2047;
+
+	private final World world;
+
+	private static final ExecutorService worker = Executors
+			.newSingleThreadExecutor();
+
+	/**
+	 * x, y, z triples of changed blocks awaiting relighting. Guarded by this
+	 */
+	private IntQueue pending = new IntQueue( 48 );
+
+	/**
+	 * The changes currently being processed
+	 */
+	private IntQueue processing = new IntQueue( 48 );
+
+	/**
+	 * <code>true</code> if a relighting job has been submitted but has not yet
+	 * picked up the pending changes. Guarded by this
+	 */
+	private boolean scheduled = false;
+
+	/**
+	 * Packed positions of lit cells that should spread their light
+	 */
+	private final IntQueue addQueue = new IntQueue( 1024 );
+
+	/**
+	 * Packed position and former light level pairs of cells whose light has
+	 * been taken away
+	 */
+	private final IntQueue removeQueue = new IntQueue( 1024 );
+
+	private int originX, originZ;
+
+	/**
+	 * The most recently used chunk
+	 */
+	private Chunk cached;
+
+	private int pass = 0;
+
+	private final ArrayList<Chunklet> touched = new ArrayList<Chunklet>();
+
+	private final ConcurrentLinkedQueue<Chunklet> relit =
+			new ConcurrentLinkedQueue<Chunklet>();
+
+	private final Runnable job = new Runnable(){
+		@Override
+		public void run()
+		{
+			synchronized( LightEngine.this )
+			{
+				final IntQueue swap = processing;
+				processing = pending;
+				pending = swap;
+				scheduled = false;
+			}
+
+			relight();
+		}
+	};
+
+	/**
+	 * @param world
+	 */
+	public LightEngine( World world )
+	{
+		this.world = world;
+	}
+
+	/**
+	 * Queues a block for relighting. Call this after the block type and height
+	 * map have been updated
+	 * 
+	 * @param x
+	 *           block coordinate
+	 * @param y
+	 *           block coordinate
+	 * @param z
+	 *           block coordinate
+	 */
+	public synchronized void blockChanged( int x, int y, int z )
+	{
+		pending.add( x );
+		pending.add( y );
+		pending.add( z );
+
+		if( !scheduled )
+		{
+			scheduled = true;
+			worker.submit( job );
+		}
+	}
+
+	/**
+	 * Queues a batch of blocks for relighting
+	 * 
+	 * @param positions
+	 *           x, y, z triples of block coordinates
+	 * @param count
+	 *           the number of blocks
+	 */
+	public synchronized void blocksChanged( int[] positions, int count )
+	{
+		for( int i = 0; i < count * 3; i++ )
+			pending.add( positions[ i ] );
+
+		if( count > 0 && !scheduled )
+		{
+			scheduled = true;
+			worker.submit( job );
+		}
+	}
+
+	/**
+	 * @return A chunklet whose lighting has changed and so needs remeshing, or
+	 *         <code>null</code> if there are none
+	 */
+	public Chunklet pollRelit()
+	{
+		return relit.poll();
+	}
+
+	private void relight()
+	{
+		final int count = processing.size() / 3;
+		if( count == 0 )
+			return;
+
+		final int[] edits = new int[count * 3];
+		for( int i = 0; i < edits.length; i++ )
+			edits[ i ] = processing.poll();
+
+		originX = edits[ 0 ];
+		originZ = edits[ 2 ];
+		cached = null;
+		pass++;
+
+		for( int channel = BLOCK; channel <= SKY; channel++ )
+		{
+			for( int i = 0; i < edits.length; i += 3 )
+				seed( channel, edits[ i ], edits[ i + 1 ], edits[ i + 2 ] );
+
+			propagateRemoval( channel );
+			propagateAddition( channel );
+		}
+
+		relit.addAll( touched );
+		touched.clear();
+		cached = null;
+	}
+
+	/**
+	 * Sets up the flood fills for a changed block
+	 * 
+	 * @param channel
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	private void seed( int channel, int x, int y, int z )
+	{
+		if( y < 0 || y >= 128 || !inRange( x, z ) )
+			return;
+
+		final Chunk c = chunk( x, z );
+		if( c == null )
+			return;
+
+		final int old = light( c, channel, x, y, z );
+		final int fresh = intrinsic( c, channel, x, y, z );
+
+		if( old > fresh )
+		{
+			set( c, channel, x, y, z, 0 );
+			removeQueue.add( pack( x, y, z ) );
+			removeQueue.add( old );
+		}
+
+		if( fresh > 0 )
+		{
+			set( c, channel, x, y, z, fresh );
+			addQueue.add( pack( x, y, z ) );
+		}
+
+		if( channel == SKY && fresh == 15 )
+		{ // the column below may have just been opened up to the sky
+			final int h = c.height( x & 15, z & 15 );
+			for( int cy = h; cy < y; cy++ )
+			{
+				if( light( c, SKY, x, cy, z ) < 15 )
+					set( c, SKY, x, cy, z, 15 );
+				addQueue.add( pack( x, cy, z ) );
+			}
+		}
+
+		// let the neighbours shine back in
+		for( int d = 0; d < 6; d++ )
+		{
+			final int nx = x + DX[ d ], ny = y + DY[ d ], nz = z + DZ[ d ];
+			if( ny >= 0 && ny < 128 && inRange( nx, nz ) )
+				addQueue.add( pack( nx, ny, nz ) );
+		}
+	}
+
+	private void propagateRemoval( int channel )
+	{
+		while( !removeQueue.isEmpty() )
+		{
+			final int p = removeQueue.poll();
+			final int level = removeQueue.poll();
+			final int x = unpackX( p ), y = unpackY( p ), z = unpackZ( p );
+
+			for( int d = 0; d < 6; d++ )
+			{
+				final int nx = x + DX[ d ], ny = y + DY[ d ], nz = z + DZ[ d ];
+				if( ny < 0 || ny >= 128 || !inRange( nx, nz ) )
+					continue;
+
+				final Chunk c = chunk( nx, nz );
+				if( c == null )
+					continue;
+
+				final int nl = light( c, channel, nx, ny, nz );
+				if( nl == 0 )
+					continue;
+
+				if( nl < level || channel == SKY && d == DOWN && level == 15
+						&& nl == 15 )
+				{ // this light came from the removed light
+					final int intrinsic = intrinsic( c, channel, nx, ny, nz );
+					set( c, channel, nx, ny, nz, intrinsic );
+
+					if( nl > intrinsic )
+					{
+						removeQueue.add( pack( nx, ny, nz ) );
+						removeQueue.add( nl );
+					}
+					if( intrinsic > 0 )
+						addQueue.add( pack( nx, ny, nz ) );
+				}
+				else
+					// lit from elsewhere, will need to fill back in
+					addQueue.add( pack( nx, ny, nz ) );
+			}
+		}
+	}
+
+	private void propagateAddition( int channel )
+	{
+		while( !addQueue.isEmpty() )
+		{
+			final int p = addQueue.poll();
+			final int x = unpackX( p ), y = unpackY( p ), z = unpackZ( p );
+
+			Chunk c = chunk( x, z );
+			if( c == null )
+				continue;
+
+			final int level = light( c, channel, x, y, z );
+			if( level <= 1 )
+				continue;
+
+			for( int d = 0; d < 6; d++ )
+			{
+				final int nx = x + DX[ d ], ny = y + DY[ d ], nz = z + DZ[ d ];
+				if( ny < 0 || ny >= 128 || !inRange( nx, nz ) )
+					continue;
+
+				c = chunk( nx, nz );
+				if( c == null )
+					continue;
+
+				final byte nt = blockType( c, nx, ny, nz );
+				if( BlockFactory.opaque( nt ) )
+					continue;
+
+				final int target =
+						channel == SKY && d == DOWN && level == 15
+								&& !BlockFactory.blocksSkyLight( nt ) ? 15 : level - 1;
+
+				if( light( c, channel, nx, ny, nz ) < target )
+				{
+					set( c, channel, nx, ny, nz, target );
+					addQueue.add( pack( nx, ny, nz ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param c
+	 * @param channel
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The light that the block has regardless of its neighbours
+	 */
+	private static int intrinsic( Chunk c, int channel, int x, int y, int z )
+	{
+		final byte type = blockType( c, x, y, z );
+
+		if( channel == BLOCK )
+			return BlockFactory.lightEmission( type );
+
+		return !BlockFactory.opaque( type ) && y >= c.height( x & 15, z & 15 ) ? 15
+				: 0;
+	}
+
+	private static byte blockType( Chunk c, int x, int y, int z )
+	{
+		return c.sections[ y >> 4 ].blockType( Chunk.sectionIndex( x & 15, y,
+				z & 15 ) );
+	}
+
+	private static int light( Chunk c, int channel, int x, int y, int z )
+	{
+		final Section s = c.sections[ y >> 4 ];
+		final int i = Chunk.sectionIndex( x & 15, y, z & 15 );
+		return channel == SKY ? s.skyLight( i ) : s.blockLight( i );
+	}
+
+	private void set( Chunk c, int channel, int x, int y, int z, int level )
+	{
+		final Section s = c.sections[ y >> 4 ];
+		final int i = Chunk.sectionIndex( x & 15, y, z & 15 );
+		if( channel == SKY )
+			s.setSkyLight( i, level );
+		else
+			s.setBlockLight( i, level );
+
+		final int cy = y >> 4;
+		touch( c, cy );
+
+		// cells on the boundary can show up in the neighbours' meshes
+		if( ( y & 15 ) == 0 && cy > 0 )
+			touch( c, cy - 1 );
+		else if( ( y & 15 ) == 15 && cy < c.chunklets.length - 1 )
+			touch( c, cy + 1 );
+
+		if( ( x & 15 ) == 0 )
+			touch( world.getLoadedChunk( c.chunkX - 1, c.chunkZ ), cy );
+		else if( ( x & 15 ) == 15 )
+			touch( world.getLoadedChunk( c.chunkX + 1, c.chunkZ ), cy );
+
+		if( ( z & 15 ) == 0 )
+			touch( world.getLoadedChunk( c.chunkX, c.chunkZ - 1 ), cy );
+		else if( ( z & 15 ) == 15 )
+			touch( world.getLoadedChunk( c.chunkX, c.chunkZ + 1 ), cy );
+	}
+
+	private void touch( Chunk c, int cy )
+	{
+		if( c != null && c.chunklets[ cy ].lightPass != pass )
+		{
+			c.chunklets[ cy ].lightPass = pass;
+			touched.add( c.chunklets[ cy ] );
+		}
+	}
+
+	private Chunk chunk( int x, int z )
+	{
+		final int cx = x >> 4;
+		final int cz = z >> 4;
+
+		if( cached == null || cached.chunkX != cx || cached.chunkZ != cz )
+			cached = world.getLoadedChunk( cx, cz );
+
+		return cached;
+	}
+
+	private boolean inRange( int x, int z )
+	{
+		return Math.abs( x - originX ) <= RANGE && Math.abs( z - originZ ) <= RANGE;
+	}
+
+	private int pack( int x, int y, int z )
+	{
+		return x - originX & 0xfff | ( z - originZ & 0xfff ) << 12 | y << 24;
+	}
+
+	private int unpackX( int p )
+	{
+		return originX + ( p << 20 >> 20 );
+	}
+
+	private static int unpackY( int p )
+	{
+		return p >>> 24;
+	}
+
+	private int unpackZ( int p )
+	{
+		return originZ + ( p << 8 >> 20 );
+	}
+}
@@ -0,0 +1,206 @@
+package com.ryanm.minedroid.chunk;
+
+import com.ryanm.droid.rugl.geom.ShapeBuilder;
+import com.ryanm.minedroid.BlockFactory;
+import com.ryanm.minedroid.BlockFactory.Block;
+import com.ryanm.minedroid.BlockFactory.Face;
+
+/**
+ * Builds simplified chunklet meshes for distant chunks. The chunklet is
+ * downsampled into 2x2x2-block cells: a cell is filled if at least half of
+ * its blocks are, and takes the type of its highest block so that grass and
+ * water surfaces keep their look. Cells are then meshed like blocks at twice
+ * the size, with flat lighting. This cuts the vertex count by about a factor
+ * of four. Instances are not thread-safe
+ * 
+ * @author ryanm
+ */
+class LodGenerator
+{
+	/**
+	 * Blocks along each edge of a cell
+	 */
+	static final int CELL = 2;
+
+	/**
+	 * Cells along each edge of a chunklet
+	 */
+	private static final int CELLS = 16 / CELL;
+
+	/**
+	 * Cell grid edge length, with a one-cell border
+	 */
+	private static final int SIZE = CELLS + 2;
+
+	/**
+	 * Cell grid index offsets
+	 */
+	private static final int DX = SIZE * SIZE, DY = 1, DZ = SIZE;
+
+	private final byte[] types = new byte[SIZE * SIZE * SIZE];
+
+	private final byte[] sky = new byte[SIZE * SIZE * SIZE];
+
+	private final byte[] block = new byte[SIZE * SIZE * SIZE];
+
+	/**
+	 * Block types of one cell, for finding the highest
+	 */
+	private final byte[] cellTypes = new byte[CELL * CELL * CELL];
+
+	/**
+	 * Adds the simplified geometry of a chunklet
+	 * 
+	 * @param c
+	 * @param opaque
+	 *           builder for opaque quads
+	 * @param transparent
+	 *           builder for transparent quads
+	 */
+	void build( Chunklet c, ShapeBuilder opaque, ShapeBuilder transparent )
+	{
+		fill( c );
+
+		for( int cx = 0; cx < CELLS; cx++ )
+			for( int cz = 0; cz < CELLS; cz++ )
+			{
+				int i = index( cx, 0, cz );
+				for( int cy = 0; cy < CELLS; cy++, i++ )
+				{
+					final Block b = BlockFactory.getBlock( types[ i ] );
+					if( b == null )
+						continue;
+
+					final ShapeBuilder sb = b.opaque ? opaque : transparent;
+
+					face( b, i + DX, cx, cy, cz, Face.South, sb );
+					face( b, i - DX, cx, cy, cz, Face.North, sb );
+					face( b, i + DZ, cx, cy, cz, Face.West, sb );
+					face( b, i - DZ, cx, cy, cz, Face.East, sb );
+					face( b, i + DY, cx, cy, cz, Face.Top, sb );
+					face( b, i - DY, cx, cy, cz, Face.Bottom, sb );
+				}
+			}
+	}
+
+	/**
+	 * Adds a cell face if it can be seen from the neighbouring cell
+	 * 
+	 * @param b
+	 *           the cell's block type
+	 * @param n
+	 *           index of the neighbouring cell
+	 * @param cx
+	 *           cell coordinate
+	 * @param cy
+	 *           cell coordinate
+	 * @param cz
+	 *           cell coordinate
+	 * @param f
+	 *           the face that looks into the neighbouring cell
+	 * @param sb
+	 */
+	private void face( Block b, int n, int cx, int cy, int cz, Face f,
+			ShapeBuilder sb )
+	{
+		final Block nb = BlockFactory.getBlock( types[ n ] );
+
+		if( nb == null || nb != b && !nb.opaque )
+		{
+			final int w =
+					ChunkMesh.lightWord( sky[ n ] * 4, block[ n ] * 4,
+							ChunkMesh.UNOCCLUDED );
+
+			b.quad( f, cx, cy, cz, w, w, w, w, false, sb );
+
+			// scale the quad up to the cell size
+			for( int v = sb.vertexOffset - 12; v < sb.vertexOffset; v++ )
+				sb.vertices[ v ] *= CELL;
+		}
+	}
+
+	/**
+	 * @param cx
+	 *           cell coordinate, in range -1 to {@link #CELLS}
+	 * @param cy
+	 *           cell coordinate, in range -1 to {@link #CELLS}
+	 * @param cz
+	 *           cell coordinate, in range -1 to {@link #CELLS}
+	 * @return index into the cell arrays
+	 */
+	private static int index( int cx, int cy, int cz )
+	{
+		return ( cx + 1 ) * DX + ( cy + 1 ) * DY + ( cz + 1 ) * DZ;
+	}
+
+	/**
+	 * Downsamples the chunklet and a one-cell border. Each cell gets the
+	 * brightest light of its blocks, which will be those that aren't solid
+	 * 
+	 * @param c
+	 */
+	private void fill( Chunklet c )
+	{
+		final Chunk parent = c.parent;
+
+		for( int cx = -1; cx <= CELLS; cx++ )
+			for( int cz = -1; cz <= CELLS; cz++ )
+			{
+				// cells don't straddle chunks, so we can find the chunk once
+				// per column
+				final int x = cx * CELL, z = cz * CELL;
+				final int chx = x >> 4, chz = z >> 4;
+				// the generator thread can't trust the chunk array
+				final Chunk chunk =
+						chx == 0 && chz == 0 ? parent : parent.world.getLoadedChunk(
+								parent.chunkX + chx, parent.chunkZ + chz );
+				final int bx = x & 15, bz = z & 15;
+
+				int i = index( cx, -1, cz );
+				for( int cy = -1; cy <= CELLS; cy++, i++ )
+				{
+					final int y = c.y + cy * CELL;
+
+					types[ i ] = 0;
+					sky[ i ] = 0;
+					block[ i ] = 0;
+
+					if( chunk == null || y < 0 || y >= 128 )
+						continue;
+
+					final Section s = chunk.sections[ y >> 4 ];
+					int filled = 0;
+					int sl = 0, bl = 0;
+					int ti = 0;
+
+					for( int dy = 0; dy < CELL; dy++ )
+						for( int dx = 0; dx < CELL; dx++ )
+							for( int dz = 0; dz < CELL; dz++ )
+							{
+								final int si =
+										Chunk.sectionIndex( bx + dx, y + dy, bz + dz );
+								final byte t = s.blockType( si );
+								cellTypes[ ti++ ] = t;
+
+								if( BlockFactory.getBlock( t ) != null )
+									filled++;
+
+								sl = Math.max( sl, s.skyLight( si ) );
+								bl = Math.max( bl, s.blockLight( si ) );
+							}
+
+					sky[ i ] = ( byte ) sl;
+					block[ i ] = ( byte ) bl;
+
+					if( filled * 2 >= cellTypes.length )
+						// the highest block that we can draw
+						for( int j = cellTypes.length - 1; j >= 0; j-- )
+							if( BlockFactory.getBlock( cellTypes[ j ] ) != null )
+							{
+								types[ i ] = cellTypes[ j ];
+								break;
+							}
+				}
+			}
+	}
+}
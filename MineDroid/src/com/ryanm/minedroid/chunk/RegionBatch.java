@@ -0,0 +1,204 @@
+package com.ryanm.minedroid.chunk;
+
+import com.ryanm.minedroid.World;
+
+/**
+ * The combined solid geometry of a 2x2x2 block of chunklets, so that they can
+ * be drawn with one call instead of eight. Each chunklet's geometry occupies
+ * a contiguous range of the combined mesh, so visible neighbours can be drawn
+ * together and hidden ones skipped. A chunklet whose geometry has changed
+ * since the batch was built is drawn on its own until things settle down and
+ * the batch is rebuilt. While the batch is current its members' own meshes
+ * are released from the buffer pool, so batched geometry is only on the GPU
+ * once. A member that is drawn on its own again is re-uploaded as it's drawn
+ * 
+ * @author ryanm
+ */
+class RegionBatch
+{
+	/**
+	 * How long a chunklet's geometry must be left alone before it is batched
+	 */
+	private static final long SETTLE_MILLIS = 2000;
+
+	/**
+	 * World coordinate of the region origin, a multiple of 32
+	 */
+	final int x, y, z;
+
+	private final Chunklet[] members = new Chunklet[8];
+
+	/**
+	 * {@link Chunklet#geomVersion} of each member when the batch was built
+	 */
+	private final int[] versions = new int[8];
+
+	private final int[] first = new int[8];
+
+	private final int[] count = new int[8];
+
+	private ChunkMesh mesh;
+
+	/**
+	 * Bitmask of members to draw this frame
+	 */
+	int visible = 0;
+
+	/**
+	 * The last frame in which a member of this batch was in view
+	 */
+	int lastFrame;
+
+	/**
+	 * <code>true</code> once this batch has been discarded
+	 */
+	boolean removed = false;
+
+	/**
+	 * @param x
+	 *           region origin
+	 * @param y
+	 *           region origin
+	 * @param z
+	 *           region origin
+	 */
+	RegionBatch( int x, int y, int z )
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	/**
+	 * @param c
+	 * @return The index of the chunklet within its region
+	 */
+	static int slot( Chunklet c )
+	{
+		return c.x >> 4 & 1 | ( c.y >> 4 & 1 ) << 1 | ( c.z >> 4 & 1 ) << 2;
+	}
+
+	/**
+	 * @param c
+	 *           a chunklet in this region
+	 * @return <code>true</code> if the batch holds the chunklet's current
+	 *         solid geometry
+	 */
+	boolean contains( Chunklet c )
+	{
+		final int s = slot( c );
+		return mesh != null && members[ s ] == c
+				&& versions[ s ] == c.geomVersion && !c.isUnloaded();
+	}
+
+	/**
+	 * Draws the visible members, joining up adjacent ranges
+	 */
+	void draw()
+	{
+		int runStart = -1;
+		int runEnd = 0;
+
+		for( int s = 0; s < 8; s++ )
+			if( ( visible & 1 << s ) != 0 && count[ s ] > 0 )
+			{
+				if( runStart >= 0 && first[ s ] == runEnd )
+					runEnd += count[ s ];
+				else
+				{
+					if( runStart >= 0 )
+						mesh.draw( runStart, runEnd - runStart );
+					runStart = first[ s ];
+					runEnd = first[ s ] + count[ s ];
+				}
+			}
+
+		if( runStart >= 0 )
+			mesh.draw( runStart, runEnd - runStart );
+
+		visible = 0;
+	}
+
+	/**
+	 * @param w
+	 * @param now
+	 *           the current {@link android.os.SystemClock#uptimeMillis()}
+	 * @return <code>true</code> if the region's chunklets have changed since
+	 *         the batch was built, and have been stable for long enough that
+	 *         it's worth rebuilding
+	 */
+	boolean ready( World w, long now )
+	{
+		boolean changed = false;
+
+		for( int s = 0; s < 8; s++ )
+		{
+			final Chunklet c = member( w, s );
+
+			if( c != members[ s ] || c != null && c.geomVersion != versions[ s ] )
+			{
+				if( c != null && now - c.geomTime < SETTLE_MILLIS )
+					return false;
+				changed = true;
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Rebuilds the combined mesh from the chunklets' current geometry
+	 * 
+	 * @param w
+	 * @return The number of bytes uploaded
+	 */
+	int rebuild( World w )
+	{
+		final ChunkMesh[] parts = new ChunkMesh[8];
+
+		for( int s = 0; s < 8; s++ )
+		{
+			final Chunklet c = member( w, s );
+			members[ s ] = c;
+			versions[ s ] = c == null ? 0 : c.geomVersion;
+			parts[ s ] = c == null ? null : c.solidMesh();
+			count[ s ] = parts[ s ] == null ? 0 : parts[ s ].vertexCount();
+		}
+
+		delete();
+
+		// null if there's too much to combine, in which case the
+		// members are drawn individually
+		mesh = ChunkMesh.merge( parts, x, y, z, first );
+
+		if( mesh == null )
+			return 0;
+
+		// the members are only drawn from the batch now
+		for( int s = 0; s < 8; s++ )
+			if( parts[ s ] != null )
+				parts[ s ].release();
+
+		return mesh.upload();
+	}
+
+	/**
+	 * Frees the combined mesh
+	 */
+	void delete()
+	{
+		if( mesh != null )
+		{
+			mesh.delete();
+			mesh = null;
+		}
+	}
+
+	private Chunklet member( World w, int s )
+	{
+		final Chunklet c =
+				w.getChunklet( x + ( s & 1 ) * 16, y + ( s >> 1 & 1 ) * 16, z
+						+ ( s >> 2 & 1 ) * 16 );
+		return c == null || c.isUnloaded() ? null : c;
+	}
+}
@@ -0,0 +1,173 @@
+package com.ryanm.minedroid.chunk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.os.SystemClock;
+
+import com.ryanm.minedroid.World;
+
+/**
+ * Cuts down on draw calls by drawing the solid geometry of stable chunklets
+ * in {@link RegionBatch}es. Offer each visible chunklet with
+ * {@link #add(Chunklet)}, draw the rest individually, then call
+ * {@link #flush(int)}. Everything here happens on the render thread
+ * 
+ * @author ryanm
+ */
+public class RegionBatcher
+{
+	/**
+	 * Batches that haven't been seen for this many frames are discarded
+	 */
+	private static final int ABANDON_FRAMES = 120;
+
+	private final World world;
+
+	private final HashMap<Long, RegionBatch> batches =
+			new HashMap<Long, RegionBatch>();
+
+	private final ArrayList<RegionBatch> all = new ArrayList<RegionBatch>();
+
+	/**
+	 * Batches with members in view this frame
+	 */
+	private final ArrayList<RegionBatch> frame = new ArrayList<RegionBatch>();
+
+	private int frameNumber = 0;
+
+	/**
+	 * Index into {@link #all} of the next batch to check for abandonment
+	 */
+	private int sweep = 0;
+
+	/**
+	 * @param world
+	 */
+	public RegionBatcher( World world )
+	{
+		this.world = world;
+	}
+
+	/**
+	 * @param c
+	 *           a visible chunklet
+	 * @return <code>true</code> if the chunklet's solid geometry will be drawn
+	 *         in a batch, <code>false</code> if it should be drawn individually
+	 */
+	public boolean add( Chunklet c )
+	{
+		if( c.isEmpty() )
+			return false;
+
+		final RegionBatch b = batchFor( c );
+		if( b.lastFrame != frameNumber )
+		{
+			b.lastFrame = frameNumber;
+			frame.add( b );
+		}
+
+		if( !b.contains( c ) )
+			return false;
+
+		c.generateGeometry( false );
+		b.visible |= 1 << RegionBatch.slot( c );
+		return true;
+	}
+
+	/**
+	 * Draws the batches and, budget permitting, rebuilds one that is out of
+	 * date
+	 * 
+	 * @param maxBytes
+	 *           how much can be uploaded
+	 * @return The number of bytes uploaded
+	 */
+	public int flush( int maxBytes )
+	{
+		final long now = SystemClock.uptimeMillis();
+		int bytes = 0;
+
+		for( int i = 0; i < frame.size(); i++ )
+		{
+			final RegionBatch b = frame.get( i );
+			b.draw();
+
+			if( bytes == 0 && maxBytes > 0 && b.ready( world, now ) )
+				bytes += b.rebuild( world );
+		}
+		frame.clear();
+
+		if( !all.isEmpty() )
+		{
+			sweep = ( sweep + 1 ) % all.size();
+			final RegionBatch b = all.get( sweep );
+			if( frameNumber - b.lastFrame > ABANDON_FRAMES )
+				remove( b );
+		}
+
+		frameNumber++;
+
+		return bytes;
+	}
+
+	/**
+	 * Discards all batches
+	 */
+	public void clear()
+	{
+		for( int i = 0; i < all.size(); i++ )
+		{
+			all.get( i ).delete();
+			all.get( i ).removed = true;
+		}
+		all.clear();
+		batches.clear();
+		frame.clear();
+	}
+
+	/**
+	 * @return The number of batches
+	 */
+	public int getBatchCount()
+	{
+		return all.size();
+	}
+
+	private RegionBatch batchFor( Chunklet c )
+	{
+		if( c.batch == null || c.batch.removed )
+		{
+			final int x = c.x & ~31;
+			final int y = c.y & ~31;
+			final int z = c.z & ~31;
+			final Long k = Long.valueOf( key( x, y, z ) );
+
+			RegionBatch b = batches.get( k );
+			if( b == null )
+			{
+				b = new RegionBatch( x, y, z );
+				b.lastFrame = frameNumber - 1;
+				batches.put( k, b );
+				all.add( b );
+			}
+			c.batch = b;
+		}
+
+		return c.batch;
+	}
+
+	private void remove( RegionBatch b )
+	{
+		b.delete();
+		b.removed = true;
+		batches.remove( Long.valueOf( key( b.x, b.y, b.z ) ) );
+		all.remove( b );
+	}
+
+	private static long key( int x, int y, int z )
+	{
+		return ( x >> 5 & 0xfffffL ) | ( z >> 5 & 0xfffffL ) << 20
+				| ( long ) ( y >> 5 ) << 40;
+	}
+}
@@ -0,0 +1,477 @@
+package com.ryanm.minedroid.chunk;
+
+import java.util.Arrays;
+
+import com.ryanm.minedroid.BlockFactory;
+
+/**
+ * Compact storage for a 16x16x16 section of a {@link Chunk}. Block types are
+ * held as a single value if the section is uniform (typically all air or all
+ * stone), or as a small palette of the types present plus packed indices into
+ * it. Light values are held as a single value or as a full nibble array.
+ * <p>
+ * Indices are section-local, y varying fastest then z then x, i.e.:
+ * <code>y + z * 16 + x * 256</code>, which mirrors the layout of the chunk
+ * data. A summary of the contents (all air, all opaque or mixed, the number
+ * of non-air blocks and the highest non-air layer) is gathered as the section
+ * is built and kept current through edits.
+ * <p>
+ * Blocks are changed on the render thread while the geometry and lighting
+ * threads read them. Whenever the palette or the index width changes, the
+ * new {@link Packing} is built in full and then published in one go, so a
+ * reader always sees a palette and indices that belong together
+ * 
+ * @author ryanm
+ */
+class Section
+{
+	/**
+	 * Number of blocks in a section
+	 */
+	static final int VOLUME = 16 * 16 * 16;
+
+	/**
+	 * The block type of every block, when {@link #packing} is
+	 * <code>null</code>
+	 */
+	private byte uniformType;
+
+	/**
+	 * The palette and indices, or <code>null</code> if the section is uniform
+	 */
+	private volatile Packing packing;
+
+	/**
+	 * Summary: number of non-air blocks
+	 */
+	private int nonAir;
+
+	/**
+	 * Summary: number of opaque blocks
+	 */
+	private int opaque;
+
+	/**
+	 * Summary: the highest section-local y that holds a non-air block, or -1
+	 */
+	private int maxHeight;
+
+	/**
+	 * <code>true</code> if {@link #maxHeight} needs to be recomputed
+	 */
+	private boolean maxHeightDirty = false;
+
+	private byte uniformSkyLight;
+
+	/**
+	 * Nibble array, or <code>null</code> if every block has the same light
+	 */
+	private byte[] skyLight;
+
+	private byte uniformBlockLight;
+
+	/**
+	 * Nibble array, or <code>null</code> if every block has the same light
+	 */
+	private byte[] blockLight;
+
+	/**
+	 * Builds a section from chunk data as it is found in the save file
+	 * 
+	 * @param blocks
+	 *           16x128x16 chunk block types
+	 * @param sky
+	 *           16x128x16 chunk sky light nibbles
+	 * @param block
+	 *           16x128x16 chunk block light nibbles
+	 * @param sy
+	 *           section index, in range 0-7
+	 */
+	Section( byte[] blocks, byte[] sky, byte[] block, int sy )
+	{
+		final int base = sy * 16;
+
+		// count the types present and summarise, all in one pass
+		final int[] counts = new int[256];
+		int top = -1;
+		for( int x = 0; x < 16; x++ )
+			for( int z = 0; z < 16; z++ )
+			{
+				final int ci = base + z * 128 + x * 2048;
+				for( int y = 0; y < 16; y++ )
+				{
+					final int id = blocks[ ci + y ] & 0xff;
+					counts[ id ]++;
+					if( id != 0 && y > top )
+						top = y;
+				}
+			}
+
+		final int[] map = new int[256];
+		int distinct = 0;
+		for( int id = 0; id < counts.length; id++ )
+			if( counts[ id ] != 0 )
+			{
+				map[ id ] = ++distinct;
+				if( BlockFactory.opaque( ( byte ) id ) )
+					opaque += counts[ id ];
+			}
+		nonAir = VOLUME - counts[ 0 ];
+		maxHeight = top;
+
+		if( distinct == 1 )
+			uniformType = blocks[ base ];
+		else
+		{
+			final byte[] palette = new byte[distinct];
+			for( int id = 0; id < map.length; id++ )
+				if( map[ id ] != 0 )
+					palette[ map[ id ] - 1 ] = ( byte ) id;
+			final Packing p = new Packing( palette, bitsFor( distinct ) );
+
+			for( int x = 0; x < 16; x++ )
+				for( int z = 0; z < 16; z++ )
+				{
+					final int ci = base + z * 128 + x * 2048;
+					final int si = z * 16 + x * 256;
+					for( int y = 0; y < 16; y++ )
+						p.setIndex( si + y, map[ blocks[ ci + y ] & 0xff ] - 1 );
+				}
+
+			packing = p;
+		}
+
+		skyLight = extractNibbles( sky, base );
+		if( skyLight == null )
+			uniformSkyLight = ( byte ) ( sky[ base / 2 ] & 0xf );
+
+		blockLight = extractNibbles( block, base );
+		if( blockLight == null )
+			uniformBlockLight = ( byte ) ( block[ base / 2 ] & 0xf );
+	}
+
+	/**
+	 * @param i
+	 *           section-local index
+	 * @return the block type
+	 */
+	byte blockType( int i )
+	{
+		final Packing p = packing;
+		if( p == null )
+			return uniformType;
+
+		return p.palette[ p.index( i ) ];
+	}
+
+	/**
+	 * @return <code>true</code> if this section is entirely air
+	 */
+	boolean isAir()
+	{
+		return nonAir == 0;
+	}
+
+	/**
+	 * @return <code>true</code> if this section is entirely opaque blocks
+	 */
+	boolean isOpaque()
+	{
+		return opaque == VOLUME;
+	}
+
+	/**
+	 * @return The number of non-air blocks in this section
+	 */
+	int nonAirCount()
+	{
+		return nonAir;
+	}
+
+	/**
+	 * @return the highest section-local y coordinate that holds a non-air
+	 *         block, or -1 if the section is all air
+	 */
+	int maxHeight()
+	{
+		if( maxHeightDirty )
+		{
+			maxHeight = -1;
+			for( int y = 15; y >= 0 && maxHeight == -1; y-- )
+				for( int xz = 0; xz < 256 && maxHeight == -1; xz++ )
+					if( blockType( y | xz << 4 ) != 0 )
+						maxHeight = y;
+			maxHeightDirty = false;
+		}
+
+		return maxHeight;
+	}
+
+	/**
+	 * @param i
+	 *           section-local index
+	 * @param type
+	 *           the new block type
+	 */
+	void setBlockType( int i, byte type )
+	{
+		summarise( blockType( i ), type, i & 15 );
+
+		Packing p = packing;
+		if( p == null )
+		{
+			if( type == uniformType )
+				return;
+
+			// expand to a two-entry palette, everything else at index 0
+			p = new Packing( new byte[] { uniformType, type }, 1 );
+			p.setIndex( i, 1 );
+			packing = p;
+			return;
+		}
+
+		int pi = 0;
+		while( pi < p.palette.length && p.palette[ pi ] != type )
+			pi++;
+
+		if( pi == p.palette.length )
+		{ // new type. Readers may be using the old packing, so we leave
+			// it alone and publish a grown copy
+			final byte[] np = new byte[pi + 1];
+			System.arraycopy( p.palette, 0, np, 0, pi );
+			np[ pi ] = type;
+
+			final Packing grown = new Packing( np, bitsFor( np.length ) );
+			for( int j = 0; j < VOLUME; j++ )
+				grown.setIndex( j, p.index( j ) );
+			grown.setIndex( i, pi );
+			packing = grown;
+			return;
+		}
+
+		// a single word write, readers see the block either before or after
+		p.setIndex( i, pi );
+	}
+
+	/**
+	 * @param i
+	 *           section-local index
+	 * @return sky light, in range 0-15
+	 */
+	int skyLight( int i )
+	{
+		return skyLight == null ? uniformSkyLight : nibble( skyLight, i );
+	}
+
+	/**
+	 * @param i
+	 *           section-local index
+	 * @param level
+	 *           in range 0-15
+	 */
+	void setSkyLight( int i, int level )
+	{
+		if( skyLight == null )
+		{
+			if( level == uniformSkyLight )
+				return;
+			skyLight = uniformNibbles( uniformSkyLight );
+		}
+		setNibble( skyLight, i, level );
+	}
+
+	/**
+	 * @param i
+	 *           section-local index
+	 * @return block light, in range 0-15
+	 */
+	int blockLight( int i )
+	{
+		return blockLight == null ? uniformBlockLight : nibble( blockLight, i );
+	}
+
+	/**
+	 * @param i
+	 *           section-local index
+	 * @param level
+	 *           in range 0-15
+	 */
+	void setBlockLight( int i, int level )
+	{
+		if( blockLight == null )
+		{
+			if( level == uniformBlockLight )
+				return;
+			blockLight = uniformNibbles( uniformBlockLight );
+		}
+		setNibble( blockLight, i, level );
+	}
+
+	/**
+	 * @return <code>true</code> if every block in this section is of the same
+	 *         type
+	 */
+	boolean isUniform()
+	{
+		return packing == null;
+	}
+
+	/**
+	 * @return An estimate of the heap used by this section, in bytes
+	 */
+	int memoryUsage()
+	{
+		int bytes = 64;
+		final Packing p = packing;
+		if( p != null )
+			bytes += p.palette.length + p.indices.length * 4;
+		if( skyLight != null )
+			bytes += skyLight.length;
+		if( blockLight != null )
+			bytes += blockLight.length;
+		return bytes;
+	}
+
+	/**
+	 * Keeps the summary up to date with a block change
+	 * 
+	 * @param from
+	 * @param to
+	 * @param y
+	 *           section-local y coordinate of the change
+	 */
+	private void summarise( byte from, byte to, int y )
+	{
+		if( from == to )
+			return;
+
+		if( from == 0 )
+			nonAir++;
+		else if( to == 0 )
+			nonAir--;
+
+		if( BlockFactory.opaque( from ) )
+			opaque--;
+		if( BlockFactory.opaque( to ) )
+			opaque++;
+
+		if( to != 0 && y > maxHeight )
+			maxHeight = y;
+		else if( to == 0 && y == maxHeight )
+			maxHeightDirty = true;
+	}
+
+	private static int bitsFor( int paletteSize )
+	{
+		int b = 1;
+		while( 1 << b < paletteSize )
+			b *= 2;
+		return b;
+	}
+
+	/**
+	 * Copies a section's worth of nibbles out of the chunk array
+	 * 
+	 * @param chunk
+	 * @param base
+	 *           chunk index of the section's lowest block
+	 * @return The section nibbles, or <code>null</code> if they are all the
+	 *         same
+	 */
+	private static byte[] extractNibbles( byte[] chunk, int base )
+	{
+		final byte first = chunk[ base / 2 ];
+		boolean uniform = ( first & 0xf ) == ( first >> 4 & 0xf );
+
+		for( int x = 0; x < 16 && uniform; x++ )
+			for( int z = 0; z < 16 && uniform; z++ )
+			{
+				final int ci = ( base + z * 128 + x * 2048 ) / 2;
+				for( int j = 0; j < 8; j++ )
+					uniform &= chunk[ ci + j ] == first;
+			}
+
+		if( uniform )
+			return null;
+
+		// each 16-block column is 8 contiguous bytes
+		final byte[] n = new byte[VOLUME / 2];
+		for( int x = 0; x < 16; x++ )
+			for( int z = 0; z < 16; z++ )
+				System.arraycopy( chunk, ( base + z * 128 + x * 2048 ) / 2, n,
+						( z * 16 + x * 256 ) / 2, 8 );
+
+		return n;
+	}
+
+	private static byte[] uniformNibbles( byte level )
+	{
+		final byte[] n = new byte[VOLUME / 2];
+		Arrays.fill( n, ( byte ) ( level | level << 4 ) );
+		return n;
+	}
+
+	private static int nibble( byte[] n, int i )
+	{
+		if( ( i & 1 ) != 0 )
+			return ( n[ i >> 1 ] & 0xf0 ) >> 4;
+		else
+			return n[ i >> 1 ] & 0xf;
+	}
+
+	private static void setNibble( byte[] n, int i, int level )
+	{
+		final int hi = i >> 1;
+		if( ( i & 1 ) != 0 )
+			n[ hi ] = ( byte ) ( n[ hi ] & 0xf | level << 4 );
+		else
+			n[ hi ] = ( byte ) ( n[ hi ] & 0xf0 | level );
+	}
+
+	/**
+	 * A palette and the packed indices into it. Only the indices ever change
+	 * once this has been published
+	 */
+	private static final class Packing
+	{
+		/**
+		 * The block types present in the section
+		 */
+		private final byte[] palette;
+
+		/**
+		 * Bits per packed index: 1, 2, 4 or 8. Always a power of two so
+		 * indices never straddle words
+		 */
+		private final int bits;
+
+		private final int mask;
+
+		/**
+		 * Packed palette indices
+		 */
+		private final int[] indices;
+
+		private Packing( byte[] palette, int bits )
+		{
+			this.palette = palette;
+			this.bits = bits;
+			mask = ( 1 << bits ) - 1;
+			indices = new int[VOLUME * bits / 32];
+		}
+
+		private int index( int i )
+		{
+			final int bit = i * bits;
+			return indices[ bit >> 5 ] >>> ( bit & 31 ) & mask;
+		}
+
+		private void setIndex( int i, int pi )
+		{
+			final int bit = i * bits;
+			final int w = bit >> 5;
+			final int shift = bit & 31;
+			indices[ w ] = indices[ w ] & ~( mask << shift ) | pi << shift;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package com.ryanm.minedroid.chunk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+import com.ryanm.droid.rugl.Game;
+import com.ryanm.minedroid.BlockFactory;
+import com.ryanm.minedroid.BlockFactory.Block;
+import com.ryanm.minedroid.nbt.RegionFile;
+import com.ryanm.minedroid.nbt.RegionFileCache;
+import com.ryanm.minedroid.nbt.Tag;
+
+/**
+ * The top surface of a region, sampled every {@link #SPACING} blocks: just
+ * the height and the type of the top block. Working this out means decoding
+ * every chunk in the region, so the result is cached to disk alongside the
+ * world and only recomputed when the region file changes
+ * 
+ * @author ryanm
+ */
+public class SurfaceTile
+{
+	/**
+	 * Blocks between samples
+	 */
+	public static final int SPACING = 8;
+
+	/**
+	 * Samples along each edge of a region
+	 */
+	public static final int SAMPLES = 32 * 16 / SPACING;
+
+	/**
+	 * Where the cached surfaces live, relative to the world directory
+	 */
+	private static final String CACHE_DIR = "minedroid/far";
+
+	/**
+	 * Bump this if the format or sampling changes
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Region coordinate
+	 */
+	public final int rx, rz;
+
+	/**
+	 * The lowest y at which the sky is visible at each sample, indexed as
+	 * <code>z * SAMPLES + x</code>
+	 */
+	final byte[] heights = new byte[SAMPLES * SAMPLES];
+
+	/**
+	 * The type of the top block at each sample, or 0 where there is no chunk
+	 */
+	final byte[] types = new byte[SAMPLES * SAMPLES];
+
+	private SurfaceTile( int rx, int rz )
+	{
+		this.rx = rx;
+		this.rz = rz;
+	}
+
+	/**
+	 * @param sx
+	 *           sample coordinate
+	 * @param sz
+	 *           sample coordinate
+	 * @return The surface height, or -1 if there is no data
+	 */
+	public int height( int sx, int sz )
+	{
+		final int i = sz * SAMPLES + sx;
+		return types[ i ] == 0 ? -1 : heights[ i ] & 0xff;
+	}
+
+	/**
+	 * @param sx
+	 *           sample coordinate
+	 * @param sz
+	 *           sample coordinate
+	 * @return The type of the top block, or 0 if there is no data
+	 */
+	public byte type( int sx, int sz )
+	{
+		return types[ sz * SAMPLES + sx ];
+	}
+
+	/**
+	 * @param type
+	 * @return A representative colour for the block type, as 0xRRGGBB
+	 */
+	public static int colour( byte type )
+	{
+		final Block b = BlockFactory.getBlock( type );
+		if( b == null )
+			return 0x808080;
+
+		switch( b )
+		{
+			case Grass:
+				return 0x5e9a3a;
+			case Leaves:
+			case Cactus:
+				return 0x3a6e24;
+			case Dirt:
+			case TilledEarth:
+			case Log:
+			case Wood:
+				return 0x866043;
+			case Sand:
+			case SandStone:
+				return 0xdbd3a0;
+			case Water:
+			case StillWater:
+				return 0x3a5fcd;
+			case Lava:
+			case StillLava:
+				return 0xd4600e;
+			case Snow:
+			case SnowyGrass:
+			case Ice:
+				return 0xf0fbfb;
+			case Gravel:
+				return 0x857f7e;
+			case Clay:
+				return 0x9ea4b0;
+			case Netherrack:
+				return 0x6f3634;
+			case SoulSand:
+				return 0x554135;
+			case Obsidian:
+				return 0x14121d;
+			default:
+				return 0x7d7d7d;
+		}
+	}
+
+	/**
+	 * Gets the surface of a region, from the cache if it is up to date or
+	 * from the region file if not
+	 * 
+	 * @param worldDir
+	 * @param rx
+	 *           region coordinate
+	 * @param rz
+	 *           region coordinate
+	 * @return The surface. Regions that have not been generated are empty
+	 */
+	public static SurfaceTile load( File worldDir, int rx, int rz )
+	{
+		final SurfaceTile t = new SurfaceTile( rx, rz );
+		final String name = "r." + rx + "." + rz;
+
+		final File region = new File( worldDir, "region/" + name + ".mcr" );
+		if( !region.exists() )
+			return t;
+
+		final long modified = region.lastModified();
+		final File cache = new File( worldDir, CACHE_DIR + "/" + name + ".far" );
+
+		if( cache.exists() && t.read( cache, modified ) )
+			return t;
+
+		t.scan( worldDir );
+
+		try
+		{
+			t.write( cache, modified );
+		}
+		catch( IOException e )
+		{
+			// no matter, we'll just have to scan it again next time
+			Log.w( Game.RUGL_TAG, "Could not cache surface of " + name, e );
+		}
+
+		return t;
+	}
+
+	/**
+	 * Decodes every chunk in the region and samples its surface
+	 * 
+	 * @param worldDir
+	 */
+	private void scan( File worldDir )
+	{
+		final RegionFile r =
+				RegionFileCache.getRegionFile( worldDir, rx * 32, rz * 32 );
+		final int perChunk = 16 / SPACING;
+
+		for( int cx = 0; cx < 32; cx++ )
+			for( int cz = 0; cz < 32; cz++ )
+			{
+				if( !r.hasChunk( cx, cz ) )
+					continue;
+
+				try
+				{
+					// leave any read-ahead data for the chunk loader
+					final DataInputStream is =
+							r.peekChunkDataInputStream( cx, cz );
+					if( is == null )
+						continue;
+
+					final Tag ct = Tag.readFrom( is, false );
+					final byte[] blocks =
+							( byte[] ) ct.findTagByName( "Blocks" ).getValue();
+					final Tag hm = ct.findTagByName( "HeightMap" );
+					final byte[] heightMap =
+							hm != null && hm.getValue() instanceof byte[] ? ( byte[] ) hm
+									.getValue() : null;
+
+					for( int i = 0; i < perChunk; i++ )
+						for( int j = 0; j < perChunk; j++ )
+						{
+							final int bx = i * SPACING + SPACING / 2;
+							final int bz = j * SPACING + SPACING / 2;
+							final int column = bz * 128 + bx * 2048;
+
+							int h;
+							if( heightMap != null && heightMap.length == 256 )
+								h = heightMap[ bz * 16 + bx ] & 0xff;
+							else
+							{
+								h = 128;
+								while( h > 0 && blocks[ column + h - 1 ] == 0 )
+									h--;
+							}
+
+							byte type = h > 0 ? blocks[ column + h - 1 ] : 1;
+							if( type == 0 )
+								type = 1;
+
+							final int si =
+									( cz * perChunk + j ) * SAMPLES + cx * perChunk + i;
+							heights[ si ] = ( byte ) h;
+							types[ si ] = type;
+						}
+				}
+				catch( Exception e )
+				{
+					Log.w( Game.RUGL_TAG, "Could not sample chunk " + cx + ", " + cz
+							+ " of region " + rx + ", " + rz, e );
+				}
+			}
+	}
+
+	private boolean read( File cache, long modified )
+	{
+		DataInputStream is = null;
+		try
+		{
+			is =
+					new DataInputStream( new BufferedInputStream( new FileInputStream(
+							cache ) ) );
+
+			if( is.readInt() != VERSION || is.readLong() != modified )
+				return false;
+
+			is.readFully( heights );
+			is.readFully( types );
+			return true;
+		}
+		catch( IOException e )
+		{
+			Log.w( Game.RUGL_TAG, "Could not read " + cache, e );
+			return false;
+		}
+		finally
+		{
+			close( is );
+		}
+	}
+
+	private void write( File cache, long modified ) throws IOException
+	{
+		cache.getParentFile().mkdirs();
+
+		final DataOutputStream os =
+				new DataOutputStream( new BufferedOutputStream(
+						new FileOutputStream( cache ) ) );
+		try
+		{
+			os.writeInt( VERSION );
+			os.writeLong( modified );
+			os.write( heights );
+			os.write( types );
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+
+	private static void close( DataInputStream is )
+	{
+		if( is != null )
+			try
+			{
+				is.close();
+			}
+			catch( IOException e )
+			{
+				// whatever
+			}
+	}
+}
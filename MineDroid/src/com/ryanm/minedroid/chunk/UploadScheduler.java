@@ -0,0 +1,108 @@
+package com.ryanm.minedroid.chunk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.ryanm.droid.rugl.util.geom.ReadableVector3f;
+import com.ryanm.droid.rugl.util.geom.Vector3f;
+
+/**
+ * Rations the swapping-in of freshly-generated chunklet geometry, so that
+ * when a whole ring of chunks arrives at once the render thread doesn't
+ * have to create and delete dozens of buffer objects in a single frame.
+ * Nearer chunklets are served first
+ * 
+ * @author ryanm
+ */
+public class UploadScheduler
+{
+	/**
+	 * Chunklets that have had new geometry delivered, from any thread
+	 */
+	private final ConcurrentLinkedQueue<Chunklet> arrivals =
+			new ConcurrentLinkedQueue<Chunklet>();
+
+	/**
+	 * Chunklets waiting for their turn, only touched on the render thread
+	 */
+	private final ArrayList<Chunklet> waiting = new ArrayList<Chunklet>();
+
+	private final Vector3f eye = new Vector3f();
+
+	private final Comparator<Chunklet> nearest = new Comparator<Chunklet>(){
+		@Override
+		public int compare( Chunklet a, Chunklet b )
+		{
+			final float ad = a.distanceSq( eye.x, eye.y, eye.z );
+			final float bd = b.distanceSq( eye.x, eye.y, eye.z );
+			return ad < bd ? -1 : ad > bd ? 1 : 0;
+		}
+	};
+
+	/**
+	 * Called when a chunklet has new geometry ready to be swapped in
+	 * 
+	 * @param c
+	 */
+	void geometryReady( Chunklet c )
+	{
+		arrivals.offer( c );
+	}
+
+	/**
+	 * Swaps in new geometry, nearest first, until the budget for this frame is
+	 * spent. At least one chunklet is always served, so a large mesh can't
+	 * block the queue. Call this on the render thread
+	 * 
+	 * @param eye
+	 *           The camera position
+	 * @param maxCount
+	 *           The most chunklets to swap in
+	 * @param maxBytes
+	 *           The most vertex data to upload, in bytes
+	 * @return The number of bytes uploaded
+	 */
+	public int process( ReadableVector3f eye, int maxCount, int maxBytes )
+	{
+		Chunklet c;
+		while( ( c = arrivals.poll() ) != null )
+			if( !c.uploadQueued )
+			{
+				c.uploadQueued = true;
+				waiting.add( c );
+			}
+
+		if( waiting.isEmpty() )
+			return 0;
+
+		this.eye.set( eye );
+		Collections.sort( waiting, nearest );
+
+		int count = 0;
+		int bytes = 0;
+		int served = 0;
+		while( served < waiting.size() && count < maxCount
+				&& ( count == 0 || bytes < maxBytes ) )
+		{
+			c = waiting.get( served++ );
+			c.uploadQueued = false;
+			bytes += c.swapGeometry();
+			count++;
+		}
+
+		waiting.subList( 0, served ).clear();
+
+		return bytes;
+	}
+
+	/**
+	 * @return The number of chunklets waiting for their new geometry to be
+	 *         swapped in
+	 */
+	public int getQueueSize()
+	{
+		return waiting.size() + arrivals.size();
+	}
+}
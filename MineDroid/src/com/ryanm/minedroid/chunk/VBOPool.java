@@ -0,0 +1,368 @@
+package com.ryanm.minedroid.chunk;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import android.opengl.GLES11;
+
+/**
+ * Sub-allocates chunk mesh storage from a few large buffer objects, so that
+ * remeshing and chunk streaming don't keep creating and deleting buffers.
+ * Each page holds packed vertex data for {@link #PAGE_VERTICES} vertices
+ * followed by their colours. Free space in each page is tracked with a
+ * sorted list of free ranges, allocated first-fit and coalesced on release.
+ * Pages that fall below half full are emptied over a number of frames by
+ * moving their allocations into the other pages, and are then deleted.
+ * <p>
+ * Everything here has to happen on the render thread
+ * 
+ * @author ryanm
+ */
+class VBOPool
+{
+	/**
+	 * Vertices per page, enough for the largest mesh
+	 */
+	static final int PAGE_VERTICES = ChunkMesh.MAX_QUADS * 4;
+
+	private final ArrayList<Page> pages = new ArrayList<Page>();
+
+	/**
+	 * A range of vertices in a page
+	 */
+	static class Allocation
+	{
+		/**
+		 * The page that holds the data
+		 */
+		Page page;
+
+		/**
+		 * Index of the first vertex in the page
+		 */
+		int offset;
+
+		/**
+		 * Number of vertices
+		 */
+		final int count;
+
+		/**
+		 * The mesh whose data this is, so it can be moved
+		 */
+		final ChunkMesh mesh;
+
+		private Allocation( ChunkMesh mesh, int count )
+		{
+			this.mesh = mesh;
+			this.count = count;
+		}
+
+		/**
+		 * @return The byte offset of the packed vertex data in the page buffer
+		 */
+		int vertexOffset()
+		{
+			return offset * ChunkMesh.STRIDE;
+		}
+
+		/**
+		 * @return The byte offset of the colour data in the page buffer
+		 */
+		int colourOffset()
+		{
+			return PAGE_VERTICES * ChunkMesh.STRIDE + offset * 4;
+		}
+	}
+
+	/**
+	 * One buffer object
+	 */
+	static class Page
+	{
+		/**
+		 * Buffer object handle
+		 */
+		final int handle;
+
+		private final ArrayList<Allocation> allocations =
+				new ArrayList<Allocation>();
+
+		/**
+		 * Sorted, non-adjacent free ranges
+		 */
+		private int[] freeStart = new int[16];
+
+		private int[] freeLength = new int[16];
+
+		private int freeCount = 0;
+
+		private int used = 0;
+
+		private Page()
+		{
+			final int[] h = new int[1];
+			GLES11.glGenBuffers( 1, h, 0 );
+			handle = h[ 0 ];
+
+			GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, handle );
+			GLES11.glBufferData( GLES11.GL_ARRAY_BUFFER, PAGE_VERTICES
+					* ( ChunkMesh.STRIDE + 4 ), null, GLES11.GL_DYNAMIC_DRAW );
+			GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, 0 );
+
+			freeStart[ 0 ] = 0;
+			freeLength[ 0 ] = PAGE_VERTICES;
+			freeCount = 1;
+		}
+
+		/**
+		 * @param count
+		 * @return The offset of the allocated range, or -1 if there is no
+		 *         space
+		 */
+		private int allocate( int count )
+		{
+			for( int i = 0; i < freeCount; i++ )
+				if( freeLength[ i ] >= count )
+				{
+					final int offset = freeStart[ i ];
+					freeStart[ i ] += count;
+					freeLength[ i ] -= count;
+
+					if( freeLength[ i ] == 0 )
+					{
+						System.arraycopy( freeStart, i + 1, freeStart, i, freeCount - i
+								- 1 );
+						System.arraycopy( freeLength, i + 1, freeLength, i, freeCount
+								- i - 1 );
+						freeCount--;
+					}
+
+					used += count;
+					return offset;
+				}
+
+			return -1;
+		}
+
+		private void release( int offset, int count )
+		{
+			used -= count;
+
+			// find where it goes
+			int i = 0;
+			while( i < freeCount && freeStart[ i ] < offset )
+				i++;
+
+			final boolean mergePrev =
+					i > 0 && freeStart[ i - 1 ] + freeLength[ i - 1 ] == offset;
+			final boolean mergeNext =
+					i < freeCount && offset + count == freeStart[ i ];
+
+			if( mergePrev && mergeNext )
+			{
+				freeLength[ i - 1 ] += count + freeLength[ i ];
+				System.arraycopy( freeStart, i + 1, freeStart, i, freeCount - i - 1 );
+				System.arraycopy( freeLength, i + 1, freeLength, i, freeCount - i
+						- 1 );
+				freeCount--;
+			}
+			else if( mergePrev )
+				freeLength[ i - 1 ] += count;
+			else if( mergeNext )
+			{
+				freeStart[ i ] = offset;
+				freeLength[ i ] += count;
+			}
+			else
+			{
+				if( freeCount == freeStart.length )
+				{
+					final int[] ns = new int[freeStart.length * 2];
+					final int[] nl = new int[freeStart.length * 2];
+					System.arraycopy( freeStart, 0, ns, 0, freeCount );
+					System.arraycopy( freeLength, 0, nl, 0, freeCount );
+					freeStart = ns;
+					freeLength = nl;
+				}
+
+				System.arraycopy( freeStart, i, freeStart, i + 1, freeCount - i );
+				System.arraycopy( freeLength, i, freeLength, i + 1, freeCount - i );
+				freeStart[ i ] = offset;
+				freeLength[ i ] = count;
+				freeCount++;
+			}
+		}
+	}
+
+	/**
+	 * Finds space for a mesh and uploads its data there
+	 * 
+	 * @param mesh
+	 * @param vertices
+	 *           packed vertex data
+	 * @param colours
+	 *           colour data
+	 * @param count
+	 *           number of vertices
+	 * @return The allocation
+	 */
+	Allocation allocate( ChunkMesh mesh, ByteBuffer vertices, ByteBuffer colours,
+			int count )
+	{
+		final Allocation a = new Allocation( mesh, count );
+		place( a, null );
+		write( a, vertices, colours );
+		return a;
+	}
+
+	/**
+	 * Overwrites the colours of an allocation
+	 * 
+	 * @param a
+	 * @param colours
+	 */
+	void writeColours( Allocation a, ByteBuffer colours )
+	{
+		GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, a.page.handle );
+		GLES11.glBufferSubData( GLES11.GL_ARRAY_BUFFER, a.colourOffset(),
+				a.count * 4, colours );
+		GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, 0 );
+	}
+
+	/**
+	 * Returns an allocation's space to the pool
+	 * 
+	 * @param a
+	 */
+	void free( Allocation a )
+	{
+		a.page.release( a.offset, a.count );
+		a.page.allocations.remove( a );
+		a.page = null;
+	}
+
+	/**
+	 * Does some defragmenting: allocations are moved out of the emptiest page
+	 * if it's less than half full and the others can take them, and empty
+	 * pages are deleted if there are others
+	 * 
+	 * @param maxBytes
+	 *           roughly how much data to move
+	 * @return The number of bytes moved
+	 */
+	int compact( int maxBytes )
+	{
+		if( pages.size() < 2 )
+			return 0;
+
+		Page victim = null;
+		int otherFree = 0;
+		for( int i = 0; i < pages.size(); i++ )
+		{
+			final Page p = pages.get( i );
+			if( victim == null || p.used < victim.used )
+				victim = p;
+		}
+		for( int i = 0; i < pages.size(); i++ )
+			if( pages.get( i ) != victim )
+				otherFree += PAGE_VERTICES - pages.get( i ).used;
+
+		if( victim.used * 2 > PAGE_VERTICES || otherFree < victim.used )
+			return 0;
+
+		int bytes = 0;
+		while( !victim.allocations.isEmpty() && bytes < maxBytes )
+		{
+			final Allocation a =
+					victim.allocations.get( victim.allocations.size() - 1 );
+			final int oldOffset = a.offset;
+
+			if( !place( a, victim ) )
+				// too fragmented to fit anywhere else
+				return bytes;
+
+			victim.allocations.remove( victim.allocations.size() - 1 );
+			victim.release( oldOffset, a.count );
+			write( a, a.mesh.packedVertices(), a.mesh.packedColours() );
+			bytes += a.count * ( ChunkMesh.STRIDE + 4 );
+		}
+
+		if( victim.allocations.isEmpty() )
+		{
+			GLES11.glDeleteBuffers( 1, new int[] { victim.handle }, 0 );
+			pages.remove( victim );
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Forgets all pages, call this when the GL context has been lost along
+	 * with the buffers
+	 */
+	void clear()
+	{
+		pages.clear();
+	}
+
+	/**
+	 * @return The number of buffer objects in use
+	 */
+	int pageCount()
+	{
+		return pages.size();
+	}
+
+	/**
+	 * Finds a range for an allocation
+	 * 
+	 * @param a
+	 * @param exclude
+	 *           a page not to use, or <code>null</code>
+	 * @return <code>true</code> if a place was found. If exclude is
+	 *         <code>null</code> then a new page will be created if needed, and
+	 *         so this will always succeed
+	 */
+	private boolean place( Allocation a, Page exclude )
+	{
+		for( int i = 0; i < pages.size(); i++ )
+		{
+			final Page p = pages.get( i );
+			if( p == exclude || PAGE_VERTICES - p.used < a.count )
+				continue;
+
+			final int offset = p.allocate( a.count );
+			if( offset >= 0 )
+			{
+				a.page = p;
+				a.offset = offset;
+				p.allocations.add( a );
+				return true;
+			}
+		}
+
+		if( exclude != null )
+			return false;
+
+		final Page p = new Page();
+		pages.add( p );
+		a.page = p;
+		a.offset = p.allocate( a.count );
+		p.allocations.add( a );
+		return true;
+	}
+
+	private static void write( Allocation a, ByteBuffer vertices,
+			ByteBuffer colours )
+	{
+		GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, a.page.handle );
+		vertices.position( 0 );
+		GLES11.glBufferSubData( GLES11.GL_ARRAY_BUFFER, a.vertexOffset(),
+				a.count * ChunkMesh.STRIDE, vertices );
+		colours.position( 0 );
+		GLES11.glBufferSubData( GLES11.GL_ARRAY_BUFFER, a.colourOffset(),
+				a.count * 4, colours );
+		GLES11.glBindBuffer( GLES11.GL_ARRAY_BUFFER, 0 );
+	}
+}
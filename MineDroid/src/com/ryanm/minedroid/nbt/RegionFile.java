@@ -49,6 +49,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
@@ -91,6 +92,17 @@ public class RegionFile
 
 	private static final byte emptySector[] = new byte[4096];
 
+	/**
+	 * The largest run of sectors we'll read in one go when prefetching
+	 */
+	private static final int MAX_PREFETCH_SECTORS = 64;
+
+	/**
+	 * Unwanted sectors between two wanted chunks that we're happy to read
+	 * through rather than seek past
+	 */
+	private static final int MAX_PREFETCH_GAP = 2;
+
 	private final File fileName;
 
 	private RandomAccessFile file;
@@ -105,6 +117,23 @@ public class RegionFile
 
 	private long lastModified = 0;
 
+	/**
+	 * Compressed chunk data that has been read ahead by
+	 * {@link #prefetch(int[], int[], int)}, indexed as for {@link #offsets}.
+	 * Entries are discarded when they are read
+	 */
+	private final byte[][] prefetched = new byte[SECTOR_INTS][];
+
+	/**
+	 * Compression version of the {@link #prefetched} data
+	 */
+	private final byte[] prefetchedVersion = new byte[SECTOR_INTS];
+
+	/**
+	 * Sequential reads land in here
+	 */
+	private byte[] staging = new byte[0];
+
 	/**
 	 * @param path
 	 */
@@ -238,6 +267,36 @@ public class RegionFile
 	 */
 	public synchronized DataInputStream getChunkDataInputStream( final int x,
 			final int z )
+	{
+		return read( x, z, true );
+	}
+
+	/**
+	 * As {@link #getChunkDataInputStream(int, int)}, but leaves any
+	 * prefetched data in place for whoever asked for it
+	 * 
+	 * @param x
+	 *           chunk coordinates <i>in this region</i>
+	 * @param z
+	 *           chunk coordinates <i>in this region</i>
+	 * @return an (uncompressed) stream representing the chunk data or
+	 *         <code>null</code> if the chunk is not found or an error occurs
+	 */
+	public synchronized DataInputStream peekChunkDataInputStream(
+			final int x, final int z )
+	{
+		return read( x, z, false );
+	}
+
+	/**
+	 * @param x
+	 * @param z
+	 * @param consume
+	 *           <code>true</code> to discard prefetched data once it's read
+	 * @return the chunk data, or <code>null</code>
+	 */
+	private DataInputStream read( final int x, final int z,
+			final boolean consume )
 	{
 		if( outOfBounds( x, z ) )
 		{
@@ -247,6 +306,14 @@ public class RegionFile
 
 		try
 		{
+			final byte[] pf = prefetched[ x + z * 32 ];
+			if( pf != null )
+			{
+				if( consume )
+					prefetched[ x + z * 32 ] = null;
+				return decompress( pf, prefetchedVersion[ x + z * 32 ] );
+			}
+
 			final int offset = getOffset( x, z );
 			if( offset == 0 )
 				// debugln("READ", x, z, "miss");
@@ -272,25 +339,12 @@ public class RegionFile
 			}
 
 			final byte version = file.readByte();
-			if( version == VERSION_GZIP )
-			{
-				final byte[] data = new byte[length - 1];
-				file.read( data );
-				final DataInputStream ret =
-						new DataInputStream( new GZIPInputStream(
-								new ByteArrayInputStream( data ) ) );
-				// debug("READ", x, z, " = found");
-				return ret;
-			}
-			else if( version == VERSION_DEFLATE )
+			if( version == VERSION_GZIP || version == VERSION_DEFLATE )
 			{
 				final byte[] data = new byte[length - 1];
-				file.read( data );
-				final DataInputStream ret =
-						new DataInputStream( new InflaterInputStream(
-								new ByteArrayInputStream( data ) ) );
+				file.readFully( data );
 				// debug("READ", x, z, " = found");
-				return ret;
+				return decompress( data, version );
 			}
 
 			debugln( "READ", x, z, "unknown version " + version );
@@ -303,6 +357,121 @@ public class RegionFile
 		}
 	}
 
+	private static DataInputStream decompress( final byte[] data,
+			final byte version ) throws IOException
+	{
+		if( version == VERSION_GZIP )
+			return new DataInputStream( new GZIPInputStream(
+					new ByteArrayInputStream( data ) ) );
+		else
+			return new DataInputStream( new InflaterInputStream(
+					new ByteArrayInputStream( data ) ) );
+	}
+
+	/**
+	 * Reads the compressed data for a set of chunks ahead of time. The chunks
+	 * are sorted by their position in the file and runs of nearby sectors are
+	 * read sequentially, rather than seeking to each chunk in turn. The data is
+	 * held until it is asked for with
+	 * {@link #getChunkDataInputStream(int, int)}
+	 * 
+	 * @param xs
+	 *           chunk coordinates <i>in this region</i>
+	 * @param zs
+	 *           chunk coordinates <i>in this region</i>
+	 * @param count
+	 *           the number of chunks in the arrays
+	 * @return The number of chunks prefetched
+	 */
+	public synchronized int prefetch( final int[] xs, final int[] zs,
+			final int count )
+	{
+		// sector number in the top bits, chunk index in the bottom
+		final long[] order = new long[count];
+		int n = 0;
+		for( int i = 0; i < count; i++ )
+		{
+			if( outOfBounds( xs[ i ], zs[ i ] ) )
+				continue;
+
+			final int index = xs[ i ] + zs[ i ] * 32;
+			final int offset = offsets[ index ];
+
+			if( offset != 0 && prefetched[ index ] == null
+					&& ( offset >> 8 ) + ( offset & 0xFF ) <= sectorFree.size() )
+				order[ n++ ] = ( long ) ( offset >> 8 ) << 16 | index;
+		}
+		Arrays.sort( order, 0, n );
+
+		int fetched = 0;
+		int i = 0;
+		while( i < n )
+		{
+			// gather a run of chunks
+			final int runStart = ( int ) ( order[ i ] >> 16 );
+			int runEnd = runStart + ( offsets[ ( int ) order[ i ] & 0xFFFF ] & 0xFF );
+			int j = i + 1;
+			while( j < n )
+			{
+				final int offset = offsets[ ( int ) order[ j ] & 0xFFFF ];
+				final int start = offset >> 8;
+				final int end = start + ( offset & 0xFF );
+
+				if( start > runEnd + MAX_PREFETCH_GAP
+						|| end - runStart > MAX_PREFETCH_SECTORS )
+					break;
+
+				runEnd = Math.max( runEnd, end );
+				j++;
+			}
+
+			final int runBytes = ( runEnd - runStart ) * SECTOR_BYTES;
+			if( staging.length < runBytes )
+				staging = new byte[runBytes];
+
+			try
+			{
+				file.seek( ( long ) runStart * SECTOR_BYTES );
+				file.readFully( staging, 0, runBytes );
+			}
+			catch( final IOException e )
+			{
+				debugln( "PREFETCH " + runStart + " exception" );
+				i = j;
+				continue;
+			}
+
+			// split the run into chunks
+			for( ; i < j; i++ )
+			{
+				final int index = ( int ) order[ i ] & 0xFFFF;
+				final int offset = offsets[ index ];
+				final int pos = ( ( offset >> 8 ) - runStart ) * SECTOR_BYTES;
+
+				final int length =
+						( staging[ pos ] & 0xFF ) << 24
+								| ( staging[ pos + 1 ] & 0xFF ) << 16
+								| ( staging[ pos + 2 ] & 0xFF ) << 8
+								| staging[ pos + 3 ] & 0xFF;
+				final byte version = staging[ pos + 4 ];
+
+				if( length < 1 || length > SECTOR_BYTES * ( offset & 0xFF ) - 4
+						|| version != VERSION_GZIP && version != VERSION_DEFLATE )
+					// leave it for the normal read path to complain about
+					continue;
+
+				final byte[] data = new byte[length - 1];
+				System.arraycopy( staging, pos + CHUNK_HEADER_SIZE, data, 0,
+						data.length );
+				prefetched[ index ] = data;
+				prefetchedVersion[ index ] = version;
+				fetched++;
+			}
+		}
+
+		return fetched;
+	}
+
 	/**
 	 * @param x
 	 *           chunk coordinates
@@ -345,6 +514,9 @@ public class RegionFile
 	private synchronized void write( final int x, final int z,
 			final byte[] data, final int length )
 	{
+		// any read-ahead data is now stale
+		prefetched[ x + z * 32 ] = null;
+
 		try
 		{
 			final int offset = getOffset( x, z );
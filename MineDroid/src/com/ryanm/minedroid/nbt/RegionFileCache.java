@@ -120,6 +120,54 @@ public class RegionFileCache
 		return r.getChunkDataInputStream( chunkX & 31, chunkZ & 31 );
 	}
 
+	/**
+	 * Reads ahead the data for a set of chunks, so that subsequent calls to
+	 * {@link #getChunkDataInputStream(File, int, int)} for them do not have to
+	 * touch the disk. Chunks are grouped by region and read in file order
+	 * 
+	 * @param basePath
+	 *           The world directory
+	 * @param chunkX
+	 *           chunk coordinates
+	 * @param chunkZ
+	 *           chunk coordinates
+	 * @param count
+	 *           The number of chunks in the arrays
+	 * @return The number of chunks read ahead
+	 */
+	public static int prefetch( File basePath, int[] chunkX, int[] chunkZ,
+			int count )
+	{
+		final boolean[] done = new boolean[count];
+		final int[] lx = new int[count];
+		final int[] lz = new int[count];
+		int fetched = 0;
+
+		for( int i = 0; i < count; i++ )
+			if( !done[ i ] )
+			{
+				final int rx = chunkX[ i ] >> 5;
+				final int rz = chunkZ[ i ] >> 5;
+
+				// collect everything else in the same region
+				int n = 0;
+				for( int j = i; j < count; j++ )
+					if( !done[ j ] && chunkX[ j ] >> 5 == rx && chunkZ[ j ] >> 5 == rz )
+					{
+						lx[ n ] = chunkX[ j ] & 31;
+						lz[ n ] = chunkZ[ j ] & 31;
+						n++;
+						done[ j ] = true;
+					}
+
+				fetched +=
+						getRegionFile( basePath, chunkX[ i ], chunkZ[ i ] ).prefetch(
+								lx, lz, n );
+			}
+
+		return fetched;
+	}
+
 	/**
 	 * @param basePath
 	 *           The world directory
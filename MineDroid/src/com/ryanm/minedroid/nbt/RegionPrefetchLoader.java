@@ -0,0 +1,59 @@
+package com.ryanm.minedroid.nbt;
+
+import java.io.File;
+
+import com.ryanm.droid.rugl.res.ResourceLoader.Loader;
+
+/**
+ * Reads ahead a batch of chunks on the resource loading thread. Queue this
+ * before the individual chunk loads and they'll find their data already in
+ * memory
+ * 
+ * @author ryanm
+ */
+public class RegionPrefetchLoader extends Loader<Integer>
+{
+	private final File dir;
+
+	private final int[] xs;
+
+	private final int[] zs;
+
+	private final int count;
+
+	/**
+	 * @param dir
+	 *           The world directory
+	 * @param xs
+	 *           chunk coordinates
+	 * @param zs
+	 *           chunk coordinates
+	 * @param count
+	 *           number of chunks in the arrays
+	 */
+	public RegionPrefetchLoader( File dir, int[] xs, int[] zs, int count )
+	{
+		this.dir = dir;
+		this.xs = xs;
+		this.zs = zs;
+		this.count = count;
+	}
+
+	@Override
+	public void load()
+	{
+		resource =
+				Integer.valueOf( RegionFileCache.prefetch( dir, xs, zs, count ) );
+	}
+
+	@Override
+	public void complete()
+	{
+	}
+
+	@Override
+	public String toString()
+	{
+		return "prefetch " + count + " chunks";
+	}
+}
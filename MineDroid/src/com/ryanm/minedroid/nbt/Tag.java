@@ -344,6 +344,113 @@ public class Tag
 					dis, type ) );
 	}
 
+	/**
+	 * Reads a single nested tag from an InputStream, skipping over everything
+	 * else without decoding it and stopping as soon as the tag is found
+	 * 
+	 * @param is
+	 *           stream to read from, like a FileInputStream
+	 * @param compressed
+	 *           <code>true</code> if the stream is gzipped
+	 * @param path
+	 *           names of the enclosing compound tags and then the tag itself,
+	 *           separated by '/', e.g.: "Data/Player/Pos"
+	 * @return the tag, or <code>null</code> if it isn't there
+	 * @throws IOException
+	 *            if there was no valid NBT structure in the InputStream or if
+	 *            another IOException occurred.
+	 */
+	public static Tag extract( final InputStream is, final boolean compressed,
+			final String path ) throws IOException
+	{
+		final DataInputStream dis =
+				new DataInputStream( compressed ? new GZIPInputStream( is ) : is );
+		final String[] names = path.split( "/" );
+
+		if( dis.readByte() != 10 )
+			return null;
+		dis.readUTF();
+
+		int depth = 0;
+		while( true )
+		{
+			// we're in a compound, looking for names[ depth ]
+			final byte type = dis.readByte();
+			if( type == 0 )
+				return null;
+
+			final String name = dis.readUTF();
+			if( !name.equals( names[ depth ] ) )
+				skipPayload( dis, type );
+			else if( depth == names.length - 1 )
+				return new Tag( Type.values()[ type ], name,
+						readPayload( dis, type ) );
+			else if( type == 10 )
+				depth++;
+			else
+				return null;
+		}
+	}
+
+	private static void skipPayload( final DataInputStream dis, final byte type )
+			throws IOException
+	{
+		switch( type )
+		{
+			case 1:
+				skip( dis, 1 );
+				break;
+			case 2:
+				skip( dis, 2 );
+				break;
+			case 3:
+			case 5:
+				skip( dis, 4 );
+				break;
+			case 4:
+			case 6:
+				skip( dis, 8 );
+				break;
+			case 7:
+				skip( dis, dis.readInt() );
+				break;
+			case 8:
+				skip( dis, dis.readUnsignedShort() );
+				break;
+			case 9:
+				final byte lt = dis.readByte();
+				final int ll = dis.readInt();
+				for( int i = 0; i < ll; i++ )
+					skipPayload( dis, lt );
+				break;
+			case 10:
+				byte stt;
+				while( ( stt = dis.readByte() ) != 0 )
+				{
+					skip( dis, dis.readUnsignedShort() );
+					skipPayload( dis, stt );
+				}
+				break;
+		}
+	}
+
+	private static void skip( final DataInputStream dis, int bytes )
+			throws IOException
+	{
+		while( bytes > 0 )
+		{
+			final int skipped = dis.skipBytes( bytes );
+			if( skipped <= 0 )
+			{
+				// skipBytes gives up at the end of the stream, make sure
+				dis.readByte();
+				bytes--;
+			}
+			else
+				bytes -= skipped;
+		}
+	}
+
 	private static Object
 			readPayload( final DataInputStream dis, final byte type )
 					throws IOException
@@ -18,12 +18,27 @@ public abstract class TagLoader extends Loader<Tag>
 {
 	private final File f;
 
+	private final String path;
+
 	/**
 	 * @param file
 	 */
 	public TagLoader( File file )
+	{
+		this( file, null );
+	}
+
+	/**
+	 * @param file
+	 * @param path
+	 *           the path of a single tag to extract, see
+	 *           {@link Tag#extract(java.io.InputStream, boolean, String)}, or
+	 *           <code>null</code> to load the whole file
+	 */
+	public TagLoader( File file, String path )
 	{
 		f = file;
+		this.path = path;
 	}
 
 	@Override
@@ -31,7 +46,20 @@ public abstract class TagLoader extends Loader<Tag>
 	{
 		try
 		{
-			resource = Tag.readFrom( new FileInputStream( f ), true );
+			final FileInputStream is = new FileInputStream( f );
+			try
+			{
+				resource =
+						path == null ? Tag.readFrom( is, true ) : Tag.extract( is,
+								true, path );
+			}
+			finally
+			{
+				is.close();
+			}
+
+			if( resource == null )
+				throw new IOException( "No " + path + " in " + f );
 		}
 		catch( IOException e )
 		{
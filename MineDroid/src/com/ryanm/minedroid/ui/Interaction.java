@@ -2,12 +2,12 @@ package com.ryanm.minedroid.ui;
 
 import android.util.FloatMath;
 
+import com.ryanm.droid.rugl.Game;
 import com.ryanm.droid.rugl.input.Touch;
 import com.ryanm.droid.rugl.input.Touch.Pointer;
 import com.ryanm.droid.rugl.input.Touch.TouchListener;
 import com.ryanm.droid.rugl.util.FPSCamera;
 import com.ryanm.droid.rugl.util.geom.BoundingCuboid;
-import com.ryanm.droid.rugl.util.geom.GridIterate;
 import com.ryanm.droid.rugl.util.geom.Vector3f;
 import com.ryanm.droid.rugl.util.geom.Vector3i;
 import com.ryanm.droid.rugl.util.math.Range;
@@ -16,8 +16,9 @@ import com.ryanm.minedroid.BlockFactory.Block;
 import com.ryanm.minedroid.ItemFactory.Item;
 import com.ryanm.minedroid.Player;
 import com.ryanm.minedroid.World;
+import com.ryanm.minedroid.World.BlockFilter;
+import com.ryanm.minedroid.World.RayHit;
 import com.ryanm.minedroid.chunk.Chunk;
-import com.ryanm.minedroid.chunk.Chunklet;
 import com.ryanm.preflect.annote.Summary;
 import com.ryanm.preflect.annote.Variable;
 
@@ -69,7 +70,20 @@ public class Interaction implements TouchListener
 	 */
 	private Vector3i placementTargetBlock = new Vector3i();
 
-	private GridIterate gridIterate = new GridIterate();
+	/**
+	 * Blocks that can be targeted: anything we can't walk through
+	 */
+	private static final BlockFilter SOLID = new BlockFilter(){
+		@Override
+		public boolean accept( byte blockType )
+		{
+			return !( blockType == 0 || blockType == Block.Water.id
+					|| blockType == Block.StillWater.id || BlockFactory
+					.getBlock( blockType ) == null );
+		}
+	};
+
+	private final RayHit hit = new RayHit();
 
 	private BoundingCuboid blockBounds = new BoundingCuboid( 0, 0, 0, 0, 0, 0 );
 
@@ -134,11 +148,8 @@ public class Interaction implements TouchListener
 
 				if( breakingProgress > 1 )
 				{ // broken!
-					Chunk chunk =
-							world.getChunklet( targetBlock.x, targetBlock.y,
-									targetBlock.z ).parent;
-					chunk.setBlockTypeForPosition( targetBlock.x, targetBlock.y,
-							targetBlock.z, ( byte ) 0 );
+					world.setBlock( targetBlock.x, targetBlock.y, targetBlock.z,
+							( byte ) 0 );
 
 					targettedBreaking = null;
 					hand.stopStriking();
@@ -148,7 +159,7 @@ public class Interaction implements TouchListener
 		else if( constantStriking || touchSticksHeld )
 		{
 			hand.repeatedStrike( false );
-			held( 400, 240, delta );
+			held( Game.gameWidth / 2, Game.gameHeight / 2, delta );
 		}
 		else if( touch != null && ( player.inHand != null || sweptItem != null ) )
 		{
@@ -193,6 +204,9 @@ public class Interaction implements TouchListener
 		{
 			touch = p;
 
+			// everything done in one touch is undone together
+			world.journal.beginGroup();
+
 			return true;
 		}
 
@@ -211,6 +225,8 @@ public class Interaction implements TouchListener
 
 			sweptItem = null;
 			justBroken = false;
+
+			world.journal.endGroup();
 		}
 	}
 
@@ -220,6 +236,8 @@ public class Interaction implements TouchListener
 		touch = null;
 		sweptItem = null;
 		justBroken = false;
+
+		world.journal.endGroup();
 	}
 
 	/**
@@ -250,9 +268,8 @@ public class Interaction implements TouchListener
 				if( !player.playerBounds.intersects( blockBounds ) )
 				{
 					hand.strike( true );
-					chunk.setBlockTypeForPosition( placementTargetBlock.x,
-							placementTargetBlock.y, placementTargetBlock.z,
-							item.block.id );
+					world.setBlock( placementTargetBlock.x, placementTargetBlock.y,
+							placementTargetBlock.z, item.block.id );
 				}
 			}
 			else
@@ -294,8 +311,8 @@ public class Interaction implements TouchListener
 
 				if( breakingProgress > 1 )
 				{ // broken!
-					chunk.setBlockTypeForPosition( targetBlock.x, targetBlock.y,
-							targetBlock.z, ( byte ) 0 );
+					world.setBlock( targetBlock.x, targetBlock.y, targetBlock.z,
+							( byte ) 0 );
 
 					targettedBreaking = null;
 					hand.stopStriking();
@@ -316,61 +333,28 @@ public class Interaction implements TouchListener
 	 *           in screen-space
 	 * @param y
 	 *           in screen-space
-	 * @return The {@link Chunk} containing the targeted block
+	 * @return The {@link Chunk} containing the targeted block, or
+	 *         <code>null</code> if there is no target
 	 */
 	private Chunk updateTarget( float x, float y )
 	{
-		x = 2 * Range.toRatio( x, 0, 800 ) - 1;
-		y = 2 * Range.toRatio( y, 0, 480 ) - 1;
+		x = 2 * Range.toRatio( x, 0, Game.gameWidth ) - 1;
+		y = 2 * Range.toRatio( y, 0, Game.gameHeight ) - 1;
 
 		// unproject
 		camera.unProject( x, y, actionDirection );
 
 		// find target block
-		actionDirection.scale( range );
-		gridIterate.setSeg( player.position.x, player.position.y,
-				player.position.z, player.position.x + actionDirection.x,
-				player.position.y + actionDirection.y, player.position.z
-						+ actionDirection.z );
-
-		targetBlock.set( gridIterate.lastGridCoords );
-		placementTargetBlock.set( gridIterate.lastGridCoords );
-
-		targetValid = false;
-		Chunklet chunk = null;
-		do
-		{
-			chunk =
-					world.getChunklet( gridIterate.lastGridCoords.x,
-							gridIterate.lastGridCoords.y, gridIterate.lastGridCoords.z );
+		targetValid =
+				world.raycast( player.position, actionDirection, range, SOLID, hit );
 
-			if( chunk != null )
-			{
-				byte bt =
-						chunk.parent.blockTypeForPosition(
-								gridIterate.lastGridCoords.x,
-								gridIterate.lastGridCoords.y,
-								gridIterate.lastGridCoords.z );
-
-				if( bt == 0 || bt == Block.Water.id || bt == Block.StillWater.id
-						|| BlockFactory.getBlock( bt ) == null )
-				{
-					placementTargetBlock.set( gridIterate.lastGridCoords );
-
-					gridIterate.next();
-				}
-				else
-				{
-					// we have hit the target
-					targetBlock.set( gridIterate.lastGridCoords );
-					targetValid = true;
-				}
-			}
-			else
-				targetValid = false;
+		if( targetValid )
+		{
+			targetBlock.set( hit.block );
+			placementTargetBlock.set( hit.placement );
+			return hit.chunk;
 		}
-		while( !targetValid && !gridIterate.isDone() );
 
-		return chunk == null ? null : chunk.parent;
+		return null;
 	}
 }